@@ -3,6 +3,10 @@
 // license found at www.lloseng.com 
 
 import java.io.*;
+import java.util.concurrent.ConcurrentHashMap;
+import common.AsyncLogger;
+import common.CommandDispatcher;
+import ocsf.common.Codecs;
 import ocsf.server.*;
 
 /**
@@ -23,6 +27,102 @@ public class EchoServer extends AbstractServer
    * The default port to listen on.
    */
   final public static int DEFAULT_PORT = 5555;
+
+  /**
+   * The room every client is in until it joins another one.
+   */
+  final public static String DEFAULT_ROOM = "lobby";
+
+  /**
+   * The number of recent messages of a room replayed to a client
+   * logging in or joining the room.
+   */
+  final public static int HISTORY_LENGTH = 20;
+
+  /**
+   * The directory of the chat log.
+   */
+  final public static String DEFAULT_LOG_DIRECTORY = "chatlog";
+
+  /**
+   * The number of most recent records of the chat log read back into
+   * the room histories when the log is opened.
+   */
+  final public static int RESTORED_RECORDS = 1000;
+
+  /**
+   * The file the metrics of the server are written to periodically.
+   */
+  final public static String DEFAULT_STATS_FILE = "server-stats.properties";
+
+  /**
+   * The time between two writes of the metrics file, in milliseconds.
+   */
+  final public static long STATS_INTERVAL = 10000;
+
+  /**
+   * The most chat lines sent to a client in one batch when broadcasts
+   * are batched, which the "broadcast.window" system property turns
+   * on by giving the window in milliseconds.
+   */
+  final public static int BROADCAST_BATCH_SIZE = 64;
+
+  /**
+   * The log of the server. Logging a message does not wait for the
+   * console, which is written by a thread of the logger.
+   */
+  private static final AsyncLogger LOG = AsyncLogger.getDefault();
+
+  /**
+   * The login id of a client, null until it logs in.
+   */
+  final public static AttributeKey<String> LOGIN_ID = new AttributeKey<String>("login id");
+
+  /**
+   * The room a client is in.
+   */
+  final public static AttributeKey<String> ROOM = new AttributeKey<String>("room");
+
+  //Instance variables **********************************************
+
+  /**
+   * The connection of each logged in client, by login id, so that a
+   * private message is routed without looking at every connection.
+   * If two clients log in with the same id, the latest one gets the
+   * private messages.
+   */
+  private final ConcurrentHashMap<String, ConnectionToClient> logins =
+    new ConcurrentHashMap<String, ConnectionToClient>();
+
+  /**
+   * The chat lines broadcast to their room but not sent yet, with the
+   * name of the room. They go into the history of the room once they
+   * are sent, so a client joining the room in the meantime does not
+   * get them from the history as well as from the broadcast.
+   */
+  private final ConcurrentHashMap<EncodedMessage, String> unsentLines =
+    new ConcurrentHashMap<EncodedMessage, String>();
+
+  /**
+   * The recent messages of each room with members, by room name.
+   */
+  private final ConcurrentHashMap<String, MessageHistory> histories =
+    new ConcurrentHashMap<String, MessageHistory>();
+
+  /**
+   * The durable log of the chat lines, each recorded as the name of
+   * its room, a tab and the line. Null if the lines are not logged.
+   * Synced when the server is closed, and closed when the process
+   * exits.
+   */
+  private MessageLog chatLog;
+
+  /**
+   * The commands clients can send, recognized without splitting
+   * every message.
+   */
+  private final CommandDispatcher<ConnectionToClient> commands =
+    new CommandDispatcher<ConnectionToClient>();
   
   //Constructors ****************************************************
   
@@ -34,6 +134,54 @@ public class EchoServer extends AbstractServer
   public EchoServer(int port) 
   {
     super(port);
+
+    //#login <loginid>
+    commands.register("#login", new CommandDispatcher.Handler<ConnectionToClient>()
+    {
+      public boolean handle(ConnectionToClient client, String line, int args)
+      {
+        String loginId = CommandDispatcher.token(line, args);
+        if(loginId == null)
+          return false; //no <loginid>, treated as a chat line
+        LOG.info("Message received", "msg", line, "from", client.getAttribute(LOGIN_ID));
+        login(client, loginId);
+        return true;
+      }
+    });
+
+    //#join <room> moves the client to another room
+    commands.register("#join", new CommandDispatcher.Handler<ConnectionToClient>()
+    {
+      public boolean handle(ConnectionToClient client, String line, int args)
+      {
+        String room = CommandDispatcher.token(line, args);
+        if(room == null)
+          return false;
+        changeRoom(client, room);
+        return true;
+      }
+    });
+
+    //#leave moves the client back to the lobby
+    commands.register("#leave", new CommandDispatcher.Handler<ConnectionToClient>()
+    {
+      public boolean handle(ConnectionToClient client, String line, int args)
+      {
+        changeRoom(client, DEFAULT_ROOM);
+        return true;
+      }
+    });
+
+    //#msg <loginid> <message> sends a private message
+    commands.register("#msg", new CommandDispatcher.Handler<ConnectionToClient>()
+    {
+      public boolean handle(ConnectionToClient client, String line, int args)
+      {
+        sendPrivateMessage(client, CommandDispatcher.token(line, args),
+          CommandDispatcher.afterToken(line, args));
+        return true;
+      }
+    });
   }
 
   
@@ -48,32 +196,277 @@ public class EchoServer extends AbstractServer
   public void handleMessageFromClient
     (Object msg, ConnectionToClient client)
   {
-    //check for #login command and ensure a <loginid> arguments has been included
-    if(msg.toString().startsWith("#login") && msg.toString().split(" ").length > 1){
-      System.out.println("Message received: " + msg + " from " + client.getInfo("login id"));
-      client.setInfo("login id", msg.toString().split(" ")[1]);
+    //#login, #join, #leave and #msg; anything else is a chat line
+    if(commands.dispatch(client, msg.toString()))
+      return;
+
+    LOG.info("Message received", "msg", msg, "from", client.getAttribute(LOGIN_ID));
+    //the snapshot is empty if the client has just disconnected
+    ConnectionRegistry.Snapshot clients = getClientSnapshot();
+    if(clients.size() == 0 || clients.get(0) != client) // if it's not the server console
+    {
+      //encoded once for the room and its history
+      EncodedMessage line = new EncodedMessage(client.getAttribute(LOGIN_ID) +"> "+ msg);
+      unsentLines.put(line, roomOf(client));
+      this.sendToRoom(roomOf(client), line);
+    }
+    else
+      this.sendToAllClients(msg);
+  }
 
-      String loginMsg = client.getInfo("login id") + " has logged on";
-      this.sendToAllClients(loginMsg);
+  /**
+   * Returns the room a client is in.
+   *
+   * @param client The connection of the client.
+   * @return The name of the room.
+   */
+  private String roomOf(ConnectionToClient client)
+  {
+    String room = client.getAttribute(ROOM);
+    return room == null ? DEFAULT_ROOM : room;
+  }
 
+  /**
+   * Sends a private message to the client logged in with a given id.
+   *
+   * @param client The connection of the sender.
+   * @param loginId The login id of the recipient.
+   * @param text The message, or null if the command has none.
+   */
+  private void sendPrivateMessage(ConnectionToClient client, String loginId, String text)
+  {
+    ConnectionToClient recipient = text == null ? null : logins.get(loginId);
+    try
+    {
+      if(text == null)
+      {
+        client.sendToClient("Usage: #msg <loginid> <message>");
+        return;
+      }
+      if(recipient == null)
+      {
+        client.sendToClient(loginId + " is not logged on");
+        return;
+      }
+    }
+    catch(IOException e)
+    {
       return;
     }
 
-    System.out.println("Message received: " + msg + " from " + client.getInfo("login id"));
-    if(getClientConnections()[0] != client) // if it's not the server console
-      this.sendToAllClients(client.getInfo("login id") +"> "+ msg);
-    else
-      this.sendToAllClients(msg);
+    try
+    {
+      recipient.sendToClient(client.getAttribute(LOGIN_ID) + " (private)> " + text);
+    }
+    catch(IOException e)
+    {
+      logins.remove(loginId, recipient);
+    }
+  }
+
+  /**
+   * Records the login id of a client and tells its room.
+   *
+   * @param client The connection of the client.
+   * @param loginId The login id.
+   */
+  private void login(ConnectionToClient client, String loginId)
+  {
+    forgetLogin(client);
+    client.setAttribute(LOGIN_ID, loginId);
+    logins.put(loginId, client);
+
+    String loginMsg = loginId + " has logged on";
+    this.sendToRoom(roomOf(client), loginMsg);
+    replayHistory(client, roomOf(client));
+  }
+
+  /**
+   * Opens the chat log, creating it if needed, and restores the
+   * history of the rooms from its most recent records. The records
+   * are found through the index of the log rather than by reading
+   * it from the start.
+   *
+   * @param directory The directory of the log.
+   * @exception IOException If the log cannot be opened.
+   */
+  public void openChatLog(File directory) throws IOException
+  {
+    chatLog = new MessageLog(directory, Codecs.TEXT,
+      MessageLog.DEFAULT_SEGMENT_SIZE, MessageLog.DEFAULT_SYNC_INTERVAL);
+
+    //the lines appended since the last sync would be lost otherwise
+    Runtime.getRuntime().addShutdownHook(new Thread("chat log close")
+    {
+      public void run()
+      {
+        closeChatLog();
+      }
+    });
+
+    long end = chatLog.getEndOffset();
+    for(long offset = Math.max(chatLog.getStartOffset(), end - RESTORED_RECORDS);
+      offset < end; offset++)
+    {
+      try
+      {
+        String record = chatLog.read(offset).toString();
+        int tab = record.indexOf('\t');
+        if(tab > 0)
+          historyOf(record.substring(0, tab)).add(new EncodedMessage(record.substring(tab + 1)));
+      }
+      catch(ClassNotFoundException e) {}
+    }
+  }
+
+  /**
+   * Syncs and closes the chat log, if it is open.  Lines are no
+   * longer logged afterwards.
+   */
+  public void closeChatLog()
+  {
+    MessageLog log = chatLog;
+    if(log != null)
+      log.close();
+  }
+
+  /**
+   * Appends a chat line to the log, once it was sent to the room.
+   * The record holds the room as well as the line, so it is encoded
+   * on its own rather than reusing the frame sent to the room.
+   *
+   * @param room The name of the room.
+   * @param line The line.
+   */
+  private void logLine(String room, EncodedMessage line)
+  {
+    if(chatLog == null)
+      return;
+
+    try
+    {
+      chatLog.append(room + "\t" + line.getMessage());
+    }
+    catch(IOException e)
+    {
+      LOG.warn("Could not log message", "error", e.getMessage());
+    }
+  }
+
+  /**
+   * Returns the history of a room, creating it if needed.
+   *
+   * @param room The name of the room.
+   * @return The history.
+   */
+  private MessageHistory historyOf(String room)
+  {
+    MessageHistory history = histories.get(room);
+    if(history == null)
+    {
+      MessageHistory created = new MessageHistory(HISTORY_LENGTH);
+      history = histories.putIfAbsent(room, created);
+      if(history == null)
+        history = created;
+    }
+    return history;
+  }
+
+  /**
+   * Sends the recent messages of a room to a client, all at once.
+   *
+   * @param client The connection of the client.
+   * @param room The name of the room.
+   */
+  private void replayHistory(ConnectionToClient client, String room)
+  {
+    MessageHistory history = histories.get(room);
+    if(history == null)
+      return;
+
+    try
+    {
+      history.replayTo(client);
+    }
+    catch(IOException e) {}
+  }
+
+  /**
+   * Forgets the history of a room once its last member has left.
+   * The lobby keeps its history.
+   *
+   * @param room The name of the room.
+   */
+  private void forgetEmptyRoom(String room)
+  {
+    if(!room.equals(DEFAULT_ROOM) && getRoomMembers(room).size() == 0)
+      histories.remove(room);
+  }
+
+  /**
+   * Removes a client from the login index.
+   *
+   * @param client The connection of the client.
+   */
+  private void forgetLogin(ConnectionToClient client)
+  {
+    String loginId = client.getAttribute(LOGIN_ID);
+    if(loginId != null)
+      logins.remove(loginId, client);
+  }
+
+  /**
+   * Moves a client from its room to another one, telling the members
+   * of both rooms.
+   *
+   * @param client The connection of the client.
+   * @param room The name of the room to move to.
+   */
+  private void changeRoom(ConnectionToClient client, String room)
+  {
+    String current = roomOf(client);
+    if(current.equals(room))
+    {
+      try
+      {
+        client.sendToClient("You are already in " + room);
+      }
+      catch(IOException e) {}
+      return;
+    }
+
+    leaveRoom(current, client);
+    this.sendToRoom(current, client.getAttribute(LOGIN_ID) + " has left " + current);
+    forgetEmptyRoom(current);
+
+    client.setAttribute(ROOM, room);
+    joinRoom(room, client);
+    this.sendToRoom(room, client.getAttribute(LOGIN_ID) + " has joined " + room);
+    replayHistory(client, room);
   }
     
+  /**
+   * This method overrides the one in the superclass.  Called once a
+   * broadcast was sent to the room, to keep the chat lines in the
+   * history and the log of the room.
+   */
+  protected void broadcastSent(String room, EncodedMessage msg)
+  {
+    String lineRoom = unsentLines.remove(msg);
+    if(lineRoom == null)
+      return;
+
+    historyOf(lineRoom).add(msg);
+    logLine(lineRoom, msg);
+  }
+
   /**
    * This method overrides the one in the superclass.  Called
    * when the server starts listening for connections.
    */
   protected void serverStarted()
   {
-    System.out.println
-      ("Server listening for connections on port " + getPort());
+    LOG.info("Server listening for connections", "port", getPort());
   }
   
   /**
@@ -82,8 +475,28 @@ public class EchoServer extends AbstractServer
    */
   protected void serverStopped()
   {
-    System.out.println
-      ("Server has stopped listening for connections.");
+    LOG.info("Server has stopped listening for connections");
+  }
+
+  /**
+   * This method overrides the one in the superclass.  Called
+   * when the server is closed, after its clients were.  Waits for
+   * the chat log to be synced; it stays open in case the server
+   * listens again.
+   */
+  protected void serverClosed()
+  {
+    if(chatLog == null)
+      return;
+
+    try
+    {
+      chatLog.sync();
+    }
+    catch(IOException e)
+    {
+      LOG.warn("Could not sync the chat log", "error", e.getMessage());
+    }
   }
 
   /**
@@ -92,10 +505,24 @@ public class EchoServer extends AbstractServer
    */
   @Override
   protected void clientConnected(ConnectionToClient client){
+    client.setAttribute(ROOM, DEFAULT_ROOM);
+    joinRoom(DEFAULT_ROOM, client);
+
     String info = "New client "+client.toString()+" connected. Welcome!";
     this.sendToAllClients(info);
   }
 
+  /**
+   * Implementation of AbstractServer hook to forget the login id
+   * of a client whose connection was closed, and the history of its
+   * room if it was the last member.
+   */
+  @Override
+  synchronized protected void clientDisconnected(ConnectionToClient client){
+    forgetLogin(client);
+    forgetEmptyRoom(roomOf(client));
+  }
+
   /**
    * Implementation of AbstractServer hook to print a message stating
    * a client has disconnected from the server.
@@ -103,6 +530,8 @@ public class EchoServer extends AbstractServer
   @Override
   synchronized protected void clientException(
     ConnectionToClient client, Throwable exception) {
+      forgetLogin(client);
+      forgetEmptyRoom(roomOf(client));
       String info = "A client has disconnected from the server";
       this.sendToAllClients(info);
   }
@@ -115,6 +544,11 @@ public class EchoServer extends AbstractServer
    *
    * @param args[0] The port number to listen on.  Defaults to 5555 
    *          if no argument is entered.
+   * @param args[1] "selector" to service clients from reactor threads,
+   *          or "virtual" to read from each client on a virtual thread,
+   *          instead of one platform thread per client.
+   * @param args[2] The directory of the chat log.  Defaults to
+   *          "chatlog".
    */
   public static void main(String[] args) 
   {
@@ -130,6 +564,25 @@ public class EchoServer extends AbstractServer
     }
 	
     EchoServer sv = new EchoServer(port);
+    if(args.length > 1 && args[1].equals("selector"))
+      sv.setConnectionMode(AbstractServer.SELECTOR);
+    else if(args.length > 1 && args[1].equals("virtual"))
+      sv.setConnectionMode(AbstractServer.VIRTUAL_THREAD_PER_CONNECTION);
+
+    long window = Long.getLong("broadcast.window", 0);
+    if(window > 0)
+      sv.setBroadcastBatching(window, BROADCAST_BATCH_SIZE);
+
+    sv.getMetrics().writePeriodically(new File(DEFAULT_STATS_FILE), STATS_INTERVAL);
+
+    try
+    {
+      sv.openChatLog(new File(args.length > 2 ? args[2] : DEFAULT_LOG_DIRECTORY));
+    }
+    catch (IOException ex)
+    {
+      LOG.warn("Could not open the chat log", "error", ex.getMessage());
+    }
     
     try 
     {
@@ -137,7 +590,7 @@ public class EchoServer extends AbstractServer
     } 
     catch (Exception ex) 
     {
-      System.out.println("ERROR - Could not listen for clients!");
+      LOG.error("Could not listen for clients", "port", port);
     }
   }
 }
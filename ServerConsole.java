@@ -3,6 +3,7 @@
 import common.*;
 import client.*;
 import ocsf.server.*;
+import java.io.File;
 import java.io.IOException;
 import java.util.Scanner;
 
@@ -31,13 +32,33 @@ public class ServerConsole implements ChatIF{
 
     EchoServer echoServer;
 
+    /**
+     * The log of the console, written by a thread of the logger.
+     * Only for diagnostics; replies to the user are printed directly.
+     */
+    private static final AsyncLogger LOG = AsyncLogger.getDefault();
+
+    /**
+     * The metrics of the server when #stats was last entered
+     */
+    ServerMetrics.Snapshot lastStats;
+
     /**
      * Constructs a ServerConsole instance.
      * @param host host address
      * @param port port to listen on
+     * @param connectionMode how the server services its clients
      */
-    public ServerConsole(String host, int port){
+    public ServerConsole(String host, int port, int connectionMode){
         echoServer = new EchoServer(port);
+        echoServer.setConnectionMode(connectionMode);
+        echoServer.getMetrics().writePeriodically(
+            new File(EchoServer.DEFAULT_STATS_FILE), EchoServer.STATS_INTERVAL);
+        try{
+            echoServer.openChatLog(new File(EchoServer.DEFAULT_LOG_DIRECTORY));
+        }catch(IOException e){
+            LOG.warn("Could not open the chat log", "error", e.getMessage());
+        }
         try{
             echoServer.listen(); 
         }catch(IOException e){
@@ -83,91 +104,145 @@ public class ServerConsole implements ChatIF{
         }
     }
 
-    private void handleClientFunctions(String msg){
-        if(msg.equals("#quit")){
-            try{
-                echoServer.close();
-            }catch(IOException e){
-                System.out.println("Error: could not close server");
-            }
+    /**
+     * The commands of the server console, looked up in a table rather
+     * than by comparing the line with each of them
+     */
+    private static final CommandDispatcher<ServerConsole> COMMANDS =
+        new CommandDispatcher<ServerConsole>();
 
-        }else if(msg.equals("#stop")){
-            if(!echoServer.isListening()){
-                System.out.println("Server already stopped");
-                return;
-            }
-            echoServer.stopListening();
-            //loop to exclude server console from message
-            Thread[] clientThreadList = echoServer.getClientConnections();
-            for (int i = 1;i<clientThreadList.length;++i){
+    static{
+        COMMANDS.registerExact("#quit", new CommandDispatcher.Handler<ServerConsole>(){
+            public boolean handle(ServerConsole console, String line, int args){
                 try{
-                    ConnectionToClient clientConn = (ConnectionToClient)clientThreadList[i];
-                    clientConn.sendToClient("WARNING - Server has stopped listening for connections");
+                    console.echoServer.close();
+                }catch(IOException e){
+                    System.out.println("Error: could not close server");
                 }
-                // Ignore all exceptions when closing clients.
-                catch(Exception ex) {}
+                return true;
             }
-            
-            
-        }else if(msg.equals("#close")){
-            echoServer.stopListening();
-
-            Thread[] clientThreadList = echoServer.getClientConnections();
-            // start loop at 1 - ServerConsole ChatClient instance will
-            // always be the first thread and must remain connected
-            for (int i = 1;i<clientThreadList.length;++i){
-                try{
-                    ConnectionToClient clientConn = (ConnectionToClient)clientThreadList[i];
-                    clientConn.sendToClient(
-                        "SERVER SHUTTING DOWN! DISCONNECTING!\nAbnormal termination of client.");
-                    
-                    String clientId = clientConn.getInfo("login id").toString();
-                    ((ConnectionToClient)clientThreadList[i]).close();
-                    System.out.println(clientId + " has disconnected");
+        });
+
+        COMMANDS.registerExact("#stop", new CommandDispatcher.Handler<ServerConsole>(){
+            public boolean handle(ServerConsole console, String line, int args){
+                EchoServer echoServer = console.echoServer;
+                if(!echoServer.isListening()){
+                    System.out.println("Server already stopped");
+                    return true;
                 }
-                // Ignore all exceptions when closing clients.
-                catch(Exception ex) {}
+                echoServer.stopListening();
+                //loop to exclude server console from message
+                ConnectionRegistry.Snapshot clients = echoServer.getClientSnapshot();
+                for (int i = 1;i<clients.size();++i){
+                    try{
+                        ConnectionToClient clientConn = clients.get(i);
+                        clientConn.sendToClient("WARNING - Server has stopped listening for connections");
+                    }
+                    // Ignore all exceptions when closing clients.
+                    catch(Exception ex) {}
+                }
+                return true;
             }
+        });
+
+        COMMANDS.registerExact("#close", new CommandDispatcher.Handler<ServerConsole>(){
+            public boolean handle(ServerConsole console, String line, int args){
+                EchoServer echoServer = console.echoServer;
+                echoServer.stopListening();
 
-            // System.out.println("Server closed");
-            
-        }else if(msg.startsWith("#setport")){
-            if(echoServer.isListening()){
-                System.out.println("Cannot set port while server is listening");
-                return;
+                ConnectionRegistry.Snapshot clients = echoServer.getClientSnapshot();
+                // start loop at 1 - ServerConsole ChatClient instance will
+                // always be the first connection and must remain connected
+                for (int i = 1;i<clients.size();++i){
+                    try{
+                        ConnectionToClient clientConn = clients.get(i);
+                        clientConn.sendToClient(
+                            "SERVER SHUTTING DOWN! DISCONNECTING!\nAbnormal termination of client.");
+
+                        String clientId = clientConn.getAttribute(EchoServer.LOGIN_ID);
+                        clientConn.close();
+                        System.out.println(clientId + " has disconnected");
+                    }
+                    // Ignore all exceptions when closing clients.
+                    catch(Exception ex) {}
+                }
+                return true;
             }
+        });
 
-            if(msg.split(" ").length < 2){
-                System.out.println("1 argument required: #setport <port>");
-                return;
+        COMMANDS.register("#setport", new CommandDispatcher.Handler<ServerConsole>(){
+            public boolean handle(ServerConsole console, String line, int args){
+                EchoServer echoServer = console.echoServer;
+                if(echoServer.isListening()){
+                    System.out.println("Cannot set port while server is listening");
+                    return true;
+                }
+
+                String port = CommandDispatcher.token(line, args);
+                if(port == null){
+                    System.out.println("1 argument required: #setport <port>");
+                    return true;
+                }
+
+                try{
+                    int pt = Integer.parseInt(port);
+                    echoServer.setPort(pt);
+                    System.out.println("Port set to " + echoServer.getPort());
+                }catch(NumberFormatException e){
+                    System.out.println("Error: <port> argument must be an integer");
+                }
+                return true;
             }
+        });
+
+        COMMANDS.registerExact("#start", new CommandDispatcher.Handler<ServerConsole>(){
+            public boolean handle(ServerConsole console, String line, int args){
+                EchoServer echoServer = console.echoServer;
+                if(echoServer.isListening()){
+                    System.out.println("Server is already listening for connections");
+                    return true;
+                }
 
-            try{
-                int pt = Integer.parseInt(msg.split(" ")[1]);
-                echoServer.setPort(pt);
-                System.out.println("Port set to " + echoServer.getPort());
-            }catch(NumberFormatException e){
-                System.out.println("Error: <port> argument must be an integer");
+                try{
+                    echoServer.listen();
+                }catch(IOException e){
+                    System.out.println("Could not start server");
+                }
+                return true;
             }
+        });
 
-        }else if(msg.equals("#start")){
-            if(echoServer.isListening()){
-                System.out.println("Server is already listening for connections");
-                return;
+        COMMANDS.registerExact("#getport", new CommandDispatcher.Handler<ServerConsole>(){
+            public boolean handle(ServerConsole console, String line, int args){
+                System.out.println("Server running on port " + console.echoServer.getPort());
+                return true;
             }
+        });
 
-            try{
-                echoServer.listen();
-            }catch(IOException e){
-                System.out.println("Could not start server");
+        COMMANDS.registerExact("#stats", new CommandDispatcher.Handler<ServerConsole>(){
+            public boolean handle(ServerConsole console, String line, int args){
+                //rates are computed since the previous #stats
+                ServerMetrics.Snapshot stats = console.echoServer.getMetrics().snapshot();
+                System.out.print(stats.report(console.lastStats));
+                console.lastStats = stats;
+
+                //then the send queue of every client that used one
+                ConnectionRegistry.Snapshot clients = console.echoServer.getClientSnapshot();
+                for(int i = 0; i < clients.size(); i++){
+                    ConnectionToClient client = clients.get(i);
+                    ServerMetrics.SendStats sendStats = client.getSendStats();
+                    if(sendStats.getCount() > 0)
+                        System.out.print(sendStats.report("client." + client.getConnectionId() + "."));
+                }
+                return true;
             }
+        });
+    }
 
-        }else if(msg.equals("#getport")){
-            System.out.println("Server running on port " + echoServer.getPort());
-            
-        }else
+    private void handleClientFunctions(String msg){
+        if(!COMMANDS.dispatch(this, msg))
             System.out.println("Invalid command: '"+msg+"' is not recognized");
-      }
+    }
 
     /**
      * Implemention of ChatIF abstract method.
@@ -183,11 +258,14 @@ public class ServerConsole implements ChatIF{
     /**
      * This method starts the server and the server-side UI.
      * @param args an optional port argument to specify the port number
-     * on which both the server and server console will listen.
+     * on which both the server and server console will listen, optionally
+     * followed by "selector" to service clients from reactor threads or
+     * "virtual" to read from each client on a virtual thread.
      */
     public static void main(String[] args){
         String host = "localhost";
         int port = 0;
+        int connectionMode = AbstractServer.THREAD_PER_CONNECTION;
 
         try
         {
@@ -196,7 +274,12 @@ public class ServerConsole implements ChatIF{
             port = DEFAULT_PORT;
         }
 
-        ServerConsole chat = new ServerConsole(host, port);
+        if(args.length > 1 && args[1].equals("selector"))
+            connectionMode = AbstractServer.SELECTOR;
+        else if(args.length > 1 && args[1].equals("virtual"))
+            connectionMode = AbstractServer.VIRTUAL_THREAD_PER_CONNECTION;
+
+        ServerConsole chat = new ServerConsole(host, port, connectionMode);
         chat.accept();  //Enable server-side messaging
   }
 }
\ No newline at end of file
@@ -0,0 +1,148 @@
+package bench;
+
+import java.lang.management.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.client.*;
+import ocsf.server.*;
+
+/**
+ * Measures the CPU cost of broadcasting a chat line to many clients.
+ * It compares the loop sendToAllClients used to run, which called
+ * sendToClient with the raw message and therefore serialized it once
+ * per recipient, with the current sendToAllClients, which serializes
+ * it once for everybody.
+ *
+ * Usage: java bench.BroadcastBenchmark [clients] [messages]
+ */
+public class BroadcastBenchmark
+{
+  //Class variables *************************************************
+
+  /**
+   * A typical chat line.
+   */
+  static final String MESSAGE = "alice> has anyone seen the slides for tomorrow?";
+
+  //Inner classes ***************************************************
+
+  /**
+   * A server that does nothing with what clients send.
+   */
+  static class SilentServer extends AbstractServer
+  {
+    SilentServer(int port)
+    {
+      super(port);
+    }
+
+    protected void handleMessageFromClient(Object msg, ConnectionToClient client) {}
+
+    /**
+     * The loop sendToAllClients ran before messages were encoded once.
+     */
+    void sendToAllClientsOneByOne(Object msg)
+    {
+      ConnectionRegistry.Snapshot clients = getClientSnapshot();
+      for (int i=0; i<clients.size(); i++)
+      {
+        try
+        {
+          clients.get(i).sendToClient(msg);
+        }
+        catch (Exception ex) {}
+      }
+    }
+  }
+
+  /**
+   * A client that counts the messages it receives.
+   */
+  static class CountingClient extends AbstractClient
+  {
+    static final AtomicLong received = new AtomicLong();
+
+    CountingClient(int port)
+    {
+      super("localhost", port);
+    }
+
+    protected void handleMessageFromServer(Object msg)
+    {
+      received.incrementAndGet();
+    }
+  }
+
+  //Class methods ***************************************************
+
+  public static void main(String[] args) throws Exception
+  {
+    int clientCount = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+    int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    int port = 15555;
+
+    SilentServer server = new SilentServer(port);
+    server.setConnectionMode(AbstractServer.SELECTOR);
+    server.listen();
+
+    CountingClient[] clients = new CountingClient[clientCount];
+    for (int i=0; i<clientCount; i++)
+    {
+      clients[i] = new CountingClient(port);
+      clients[i].setVirtualThreads(true);
+      clients[i].openConnection();
+    }
+    while (server.getNumberOfClients() < clientCount)
+      Thread.sleep(10);
+
+    System.out.println("Broadcasting to " + clientCount + " clients, "
+      + messages + " messages per run");
+
+    for (int run=0; run<3; run++)
+    {
+      boolean warmup = run == 0;
+      report("one by one  ", warmup,
+        measure(server, clientCount, messages, false));
+      report("encoded once", warmup,
+        measure(server, clientCount, messages, true));
+    }
+
+    for (int i=0; i<clientCount; i++)
+      clients[i].closeConnection();
+    server.close();
+    System.exit(0);
+  }
+
+  /**
+   * Broadcasts the messages and waits until every client received them.
+   *
+   * @return the CPU time, in ns, used by the broadcasting thread.
+   */
+  static long measure(SilentServer server, int clientCount, int messages,
+    boolean encodeOnce) throws InterruptedException
+  {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    long expected = CountingClient.received.get() + (long)clientCount * messages;
+
+    long start = threads.getCurrentThreadCpuTime();
+    for (int i=0; i<messages; i++)
+    {
+      if (encodeOnce)
+        server.sendToAllClients(MESSAGE);
+      else
+        server.sendToAllClientsOneByOne(MESSAGE);
+    }
+    long cpu = threads.getCurrentThreadCpuTime() - start;
+
+    while (CountingClient.received.get() < expected)
+      Thread.sleep(1);
+    return cpu;
+  }
+
+  static void report(String name, boolean warmup, long cpuNanos)
+  {
+    if (!warmup)
+      System.out.println(name + ": " + (cpuNanos / 1000000) + " ms CPU");
+  }
+}
+//End of BroadcastBenchmark class
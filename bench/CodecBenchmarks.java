@@ -0,0 +1,94 @@
+package bench;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ocsf.common.*;
+
+/**
+ * Cost of serializing a chat line for the wire, and of reading it back:
+ * a frame with each codec, and a message written to a legacy object
+ * stream that is reset periodically.
+ *
+ * <pre>
+ * java -jar jmh/target/benchmarks.jar CodecBenchmarks
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CodecBenchmarks
+{
+  //Instance variables **********************************************
+
+  /**
+   * The message, in a field so that the JIT cannot fold it.
+   */
+  String message = Fixtures.MESSAGE;
+
+  byte[] textPayload;
+
+  byte[] serializedPayload;
+
+  StreamResetPolicy policy;
+
+  ObjectOutputStream stream;
+
+  //Instance methods ************************************************
+
+  @Setup
+  public void setUp() throws IOException
+  {
+    textPayload = Codecs.TEXT.encode(message);
+    serializedPayload = Codecs.SERIALIZATION.encode(message);
+
+    // The legacy path: one long lived object stream, reset periodically
+    policy = new StreamResetPolicy(
+      StreamResetPolicy.DEFAULT_MESSAGES, StreamResetPolicy.DEFAULT_BYTES);
+    stream = new ObjectOutputStream(policy.track(new OutputStream()
+    {
+      public void write(int b) {}
+      public void write(byte[] b, int off, int len) {}
+    }));
+  }
+
+  @Benchmark
+  public byte[] textEncode() throws IOException
+  {
+    return Frames.encode(message, Codecs.TEXT);
+  }
+
+  @Benchmark
+  public Object textDecode() throws Exception
+  {
+    return Codecs.TEXT.decode(textPayload, 0, textPayload.length);
+  }
+
+  @Benchmark
+  public byte[] serializationEncode() throws IOException
+  {
+    return Frames.encode(message, Codecs.SERIALIZATION);
+  }
+
+  @Benchmark
+  public Object serializationDecode() throws Exception
+  {
+    return Codecs.SERIALIZATION.decode(serializedPayload, 0, serializedPayload.length);
+  }
+
+  @Benchmark
+  public String objectStreamWrite() throws IOException
+  {
+    // A new string each time, like a new chat line
+    String line = new String(message);
+    stream.writeObject(line);
+    policy.written(stream);
+    return line;
+  }
+}
+//End of CodecBenchmarks class
@@ -0,0 +1,63 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ocsf.server.*;
+
+/**
+ * End-to-end latency of a message sent by a client and echoed back by
+ * the server over loopback, for each connection mode of the server.
+ * Sampled, so JMH reports percentiles as well as the mean.
+ *
+ * <pre>
+ * java -jar jmh/target/benchmarks.jar EchoLatencyBenchmarks
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EchoLatencyBenchmarks
+{
+  //Instance variables **********************************************
+
+  @Param({ "THREAD_PER_CONNECTION", "SELECTOR", "VIRTUAL_THREAD_PER_CONNECTION" })
+  String mode;
+
+  String message = Fixtures.MESSAGE;
+
+  AbstractServer server;
+
+  Fixtures.BenchClient[] clients;
+
+  //Instance methods ************************************************
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception
+  {
+    int connectionMode = mode.equals("SELECTOR") ? AbstractServer.SELECTOR
+      : mode.equals("VIRTUAL_THREAD_PER_CONNECTION") ?
+        AbstractServer.VIRTUAL_THREAD_PER_CONNECTION : AbstractServer.THREAD_PER_CONNECTION;
+    server = Fixtures.startServer(connectionMode);
+    clients = Fixtures.connect(server, 1, true);
+    clients[0].setTcpNoDelay(true);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception
+  {
+    Fixtures.disconnect(server, clients);
+  }
+
+  @Benchmark
+  public Object roundTrip() throws Exception
+  {
+    clients[0].sendToServer(message);
+    return clients[0].replies.take();
+  }
+}
+//End of EchoLatencyBenchmarks class
@@ -0,0 +1,60 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ocsf.server.*;
+
+/**
+ * Broadcast fan-out against the number of clients: the time from
+ * sendToAllClients until every client got the message, with a server
+ * in selector mode and its clients on loopback.
+ *
+ * <pre>
+ * java -jar jmh/target/benchmarks.jar FanOutBenchmarks -p clients=100
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmarks
+{
+  //Instance variables **********************************************
+
+  @Param({ "10", "100", "1000" })
+  int clients;
+
+  String message = Fixtures.MESSAGE;
+
+  AbstractServer server;
+
+  Fixtures.BenchClient[] connections;
+
+  //Instance methods ************************************************
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception
+  {
+    server = Fixtures.startServer(AbstractServer.SELECTOR);
+    connections = Fixtures.connect(server, clients, false);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception
+  {
+    Fixtures.disconnect(server, connections);
+  }
+
+  @Benchmark
+  public void sendToAllClients()
+  {
+    long expected = Fixtures.BenchClient.received.get() + clients;
+    server.sendToAllClients(message);
+    Fixtures.awaitReceived(expected);
+  }
+}
+//End of FanOutBenchmarks class
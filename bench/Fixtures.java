@@ -0,0 +1,140 @@
+package bench;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.client.*;
+import ocsf.server.*;
+
+/**
+ * What the JMH benchmarks of this package share: a typical chat line,
+ * a server echoing messages back, and clients counting what they
+ * receive.
+ */
+final class Fixtures
+{
+  //Class variables *************************************************
+
+  /**
+   * A typical chat line.
+   */
+  static final String MESSAGE = "alice> has anyone seen the slides for tomorrow?";
+
+  /**
+   * The port the benchmark servers listen on.
+   */
+  static final int PORT = 15557;
+
+  //Inner classes ***************************************************
+
+  /**
+   * A server echoing every message back to its sender.
+   */
+  static class EchoBackServer extends AbstractServer
+  {
+    EchoBackServer(int port)
+    {
+      super(port);
+    }
+
+    protected void handleMessageFromClient(Object msg, ConnectionToClient client)
+    {
+      try
+      {
+        client.sendToClient(msg);
+      }
+      catch (IOException ex) {}
+    }
+  }
+
+  /**
+   * A client counting the messages it receives and handing them over
+   * to whoever waits for them.
+   */
+  static class BenchClient extends AbstractClient
+  {
+    static final AtomicLong received = new AtomicLong();
+    final SynchronousQueue<Object> replies = new SynchronousQueue<Object>();
+    final boolean keepReplies;
+
+    BenchClient(int port, boolean keepReplies)
+    {
+      super("localhost", port);
+      this.keepReplies = keepReplies;
+    }
+
+    protected void handleMessageFromServer(Object msg)
+    {
+      received.incrementAndGet();
+      if (keepReplies)
+      {
+        try
+        {
+          replies.put(msg);
+        }
+        catch (InterruptedException ex) {}
+      }
+    }
+  }
+
+  //Constructors ****************************************************
+
+  private Fixtures() {}
+
+  //Class methods ***************************************************
+
+  /**
+   * Starts an echoing server.
+   *
+   * @param mode the connection mode of the server.
+   */
+  static EchoBackServer startServer(int mode) throws IOException
+  {
+    EchoBackServer server = new EchoBackServer(PORT);
+    server.setConnectionMode(mode);
+    server.listen();
+    return server;
+  }
+
+  /**
+   * Connects clients and waits until the server has registered them.
+   */
+  static BenchClient[] connect(AbstractServer server, int count,
+    boolean keepReplies) throws Exception
+  {
+    BenchClient[] clients = new BenchClient[count];
+    for (int i=0; i<count; i++)
+    {
+      clients[i] = new BenchClient(PORT, keepReplies);
+      clients[i].setVirtualThreads(true);
+      clients[i].openConnection();
+    }
+    while (server.getNumberOfClients() < count)
+      Thread.sleep(10);
+    return clients;
+  }
+
+  /**
+   * Closes the clients and the server.
+   */
+  static void disconnect(AbstractServer server, BenchClient[] clients)
+    throws Exception
+  {
+    for (int i=0; i<clients.length; i++)
+      clients[i].closeConnection();
+    server.close();
+    Thread.sleep(200); // let the port be released
+  }
+
+  /**
+   * Waits until the clients have received a number of messages in
+   * total since they were created.
+   */
+  static void awaitReceived(long expected)
+  {
+    while (BenchClient.received.get() < expected)
+      Thread.onSpinWait();
+  }
+}
+//End of Fixtures class
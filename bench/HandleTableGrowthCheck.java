@@ -0,0 +1,133 @@
+package bench;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.client.*;
+import ocsf.server.*;
+
+/**
+ * Regression check for the handle tables of legacy object streams.
+ * Pushes a million distinct messages through one legacy connection,
+ * first from the client to the server, then from the server to the
+ * client, and fails if the heap still in use afterwards grew by more
+ * than a few megabytes. Without the automatic reset policy both object
+ * streams keep every message and the heap grows by well over 100 MB.
+ *
+ * Usage: java bench.HandleTableGrowthCheck [messages] [resetMessages]
+ * Pass 0 as resetMessages to see the leak with resets disabled.
+ */
+public class HandleTableGrowthCheck
+{
+  //Class variables *************************************************
+
+  /**
+   * The growth, in bytes, above which the check fails.
+   */
+  static final long MAX_GROWTH = 16 * 1024 * 1024;
+
+  //Inner classes ***************************************************
+
+  /**
+   * A server counting the messages it receives.
+   */
+  static class CountingServer extends AbstractServer
+  {
+    final AtomicLong received = new AtomicLong();
+
+    CountingServer(int port)
+    {
+      super(port);
+    }
+
+    protected void handleMessageFromClient(Object msg, ConnectionToClient client)
+    {
+      received.incrementAndGet();
+    }
+  }
+
+  /**
+   * A client counting the messages it receives.
+   */
+  static class CountingClient extends AbstractClient
+  {
+    final AtomicLong received = new AtomicLong();
+
+    CountingClient(int port)
+    {
+      super("localhost", port);
+    }
+
+    protected void handleMessageFromServer(Object msg)
+    {
+      received.incrementAndGet();
+    }
+  }
+
+  //Class methods ***************************************************
+
+  public static void main(String[] args) throws Exception
+  {
+    int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    int resetMessages = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+    long resetBytes = resetMessages == 0 ? 0 : 1024 * 1024;
+    int port = 15556;
+
+    CountingServer server = new CountingServer(port);
+    server.setResetPolicy(resetMessages, resetBytes);
+    server.listen();
+
+    CountingClient client = new CountingClient(port);
+    client.setFramedProtocol(false);
+    client.setResetPolicy(resetMessages, resetBytes);
+    client.openConnection();
+    while (server.getNumberOfClients() < 1)
+      Thread.sleep(10);
+
+    long before = usedHeap();
+
+    for (int i=0; i<messages; i++)
+      client.sendToServer("message " + i);
+    while (server.received.get() < messages)
+      Thread.sleep(10);
+    long afterUpload = usedHeap();
+
+    for (int i=0; i<messages; i++)
+      server.sendToAllClients("message " + i);
+    while (client.received.get() < messages)
+      Thread.sleep(10);
+    long afterDownload = usedHeap();
+
+    System.out.println("client to server: " + mb(afterUpload - before)
+      + " MB retained after " + messages + " messages");
+    System.out.println("server to client: " + mb(afterDownload - afterUpload)
+      + " MB retained after " + messages + " messages");
+
+    client.closeConnection();
+    server.close();
+
+    boolean passed = afterDownload - before < MAX_GROWTH;
+    System.out.println(passed ? "PASSED" : "FAILED: heap grew by "
+      + mb(afterDownload - before) + " MB");
+    System.exit(passed ? 0 : 1);
+  }
+
+  /**
+   * Returns the heap in use once garbage has been collected.
+   */
+  static long usedHeap() throws InterruptedException
+  {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i=0; i<3; i++)
+    {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  static long mb(long bytes)
+  {
+    return bytes / (1024 * 1024);
+  }
+}
+//End of HandleTableGrowthCheck class
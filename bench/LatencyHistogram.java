@@ -0,0 +1,169 @@
+package bench;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram in the style of HdrHistogram: values are counted
+ * in buckets whose width grows with the value, so that every recorded
+ * value is kept with a relative error below 1/64 whatever its
+ * magnitude, in a fixed amount of memory. Recording is lock-free and
+ * may be done from any number of threads.
+ *
+ * Values below 128 get a bucket each; above that, every power of two is
+ * split into 64 buckets of equal width.
+ */
+public class LatencyHistogram
+{
+  //Class variables *************************************************
+
+  /**
+   * Number of values below which every value has its own bucket.
+   */
+  private static final int LINEAR = 128;
+
+  /**
+   * Number of buckets per power of two above LINEAR.
+   */
+  private static final int HALF = LINEAR / 2;
+
+  /**
+   * Number of buckets needed for any positive long.
+   */
+  private static final int BUCKETS = LINEAR + (63 - 7 + 1) * HALF;
+
+  //Instance variables **********************************************
+
+  /**
+   * The count of values in each bucket.
+   */
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+  //Instance methods ************************************************
+
+  /**
+   * Records a value. Negative values are recorded as 0.
+   *
+   * @param value the value, typically in nanoseconds.
+   */
+  public void record(long value)
+  {
+    counts.incrementAndGet(bucketOf(Math.max(0, value)));
+  }
+
+  /**
+   * Forgets every value recorded so far.
+   */
+  public void reset()
+  {
+    for (int i=0; i<BUCKETS; i++)
+      counts.set(i, 0);
+  }
+
+  /**
+   * @return the number of values recorded.
+   */
+  public long getTotalCount()
+  {
+    long total = 0;
+    for (int i=0; i<BUCKETS; i++)
+      total += counts.get(i);
+    return total;
+  }
+
+  /**
+   * Returns the value at a percentile: the highest value of the bucket
+   * holding it.
+   *
+   * @param percentile between 0 and 100.
+   * @return the value, or 0 if nothing was recorded.
+   */
+  public long getValueAtPercentile(double percentile)
+  {
+    long total = getTotalCount();
+    if (total == 0)
+      return 0;
+
+    long rank = Math.max(1, (long)Math.ceil(total * percentile / 100));
+    long seen = 0;
+    for (int i=0; i<BUCKETS; i++)
+    {
+      seen += counts.get(i);
+      if (seen >= rank)
+        return highestValueOf(i);
+    }
+    return highestValueOf(BUCKETS - 1);
+  }
+
+  /**
+   * @return the highest value recorded, to the precision of the
+   *   histogram.
+   */
+  public long getMaxValue()
+  {
+    for (int i=BUCKETS-1; i>=0; i--)
+    {
+      if (counts.get(i) > 0)
+        return highestValueOf(i);
+    }
+    return 0;
+  }
+
+  /**
+   * Prints the percentile distribution in the format of HdrHistogram,
+   * which its plotting tools accept.
+   *
+   * @param out where to print.
+   * @param scale the values are divided by it, e.g. 1000.0 to print
+   *   nanoseconds as microseconds.
+   */
+  public void printPercentiles(PrintStream out, double scale)
+  {
+    out.println(String.format("%12s %14s %10s %14s",
+      "Value", "Percentile", "TotalCount", "1/(1-Percentile)"));
+
+    long total = getTotalCount();
+    long seen = 0;
+    for (int i=0; i<BUCKETS; i++)
+    {
+      long count = counts.get(i);
+      if (count == 0)
+        continue;
+
+      seen += count;
+      double fraction = (double)seen / total;
+      String inverse = seen == total ? "" : String.format("%14.2f", 1 / (1 - fraction));
+      out.println(String.format("%12.3f %2.12f %10d %s",
+        highestValueOf(i) / scale, fraction, seen, inverse));
+    }
+    out.println(String.format("#[Max = %12.3f, Total count = %12d]",
+      getMaxValue() / scale, total));
+  }
+
+  /**
+   * @return the bucket of a value.
+   */
+  private static int bucketOf(long value)
+  {
+    if (value < LINEAR)
+      return (int)value;
+
+    int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+    int top = (int)(value >>> shift);  // between HALF and LINEAR - 1
+    return LINEAR + (shift - 1) * HALF + (top - HALF);
+  }
+
+  /**
+   * @return the highest value counted in a bucket.
+   */
+  private static long highestValueOf(int bucket)
+  {
+    if (bucket < LINEAR)
+      return bucket;
+
+    int shift = (bucket - LINEAR) / HALF + 1;
+    long top = (bucket - LINEAR) % HALF + HALF;
+    return ((top + 1) << shift) - 1;
+  }
+}
+//End of LatencyHistogram class
@@ -0,0 +1,236 @@
+package bench;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.client.*;
+
+/**
+ * Drives a chat server with many simulated users from a single JVM.
+ * ChatClient cannot be used for that: its constructor connects and
+ * quits the process on failure, and its console reads stdin. Each
+ * simulated user here is a plain AbstractClient that logs in, then
+ * sends messages at a fixed rate.
+ *
+ * Every message carries the time at which it was meant to be sent.
+ * EchoServer broadcasts it to all users, and each user receiving it
+ * records the delay from that time, so the latency reported includes
+ * the time a message waited behind earlier ones on the sending side
+ * too, instead of hiding it (coordinated omission).
+ *
+ * Start the server, e.g. "java EchoServer 5555 selector", then:
+ *
+ * <pre>
+ * java -cp out bench.LoadGenerator [host] [port] [users] [rate] [seconds] [ramp seconds] [rooms]
+ * </pre>
+ *
+ * where rate is the number of messages each user sends per second.
+ * EchoServer delivers every message to every user of the same room, so
+ * with a single room the deliveries grow with the square of the number
+ * of users. With more rooms, users are spread evenly over them.
+ */
+public class LoadGenerator
+{
+  //Class variables *************************************************
+
+  /**
+   * Marks the send time in the messages of the simulated users.
+   */
+  static final String TIME_TAG = "t=";
+
+  /**
+   * The latency of every delivery measured after the ramp up.
+   */
+  static final LatencyHistogram latencies = new LatencyHistogram();
+
+  /**
+   * Messages sent after the ramp up.
+   */
+  static final AtomicLong sent = new AtomicLong();
+
+  /**
+   * Messages delivered after the ramp up.
+   */
+  static final AtomicLong delivered = new AtomicLong();
+
+  /**
+   * Failed connections and sends.
+   */
+  static final AtomicLong errors = new AtomicLong();
+
+  /**
+   * Whether the ramp up is over and measures are kept.
+   */
+  static volatile boolean recording;
+
+  //Inner classes ***************************************************
+
+  /**
+   * A simulated user.
+   */
+  static class User extends AbstractClient
+  {
+    /**
+     * The login id of the user.
+     */
+    final String loginId;
+
+    /**
+     * The room the user joins, or null to stay in the default room.
+     */
+    final String room;
+
+    /**
+     * Time between two messages, in nanoseconds.
+     */
+    final long period;
+
+    /**
+     * Time at which the first message was meant to be sent.
+     */
+    long firstSend;
+
+    /**
+     * Number of messages sent so far.
+     */
+    long count;
+
+    User(String host, int port, String loginId, String room, long period)
+    {
+      super(host, port);
+      this.loginId = loginId;
+      this.room = room;
+      this.period = period;
+      setVirtualThreads(true);
+    }
+
+    /**
+     * Connects and logs in.
+     */
+    void start() throws IOException
+    {
+      openConnection();
+      sendToServer("#login " + loginId);
+      if (room != null)
+        sendToServer("#join " + room);
+      firstSend = System.nanoTime();
+    }
+
+    /**
+     * Sends the next message; called by the scheduler at the rate of
+     * the user.
+     */
+    void sendNext()
+    {
+      if (!isConnected())
+        return;
+
+      long intended = firstSend + count++ * period;
+      try
+      {
+        sendToServer(TIME_TAG + intended);
+        if (recording)
+          sent.incrementAndGet();
+      }
+      catch (IOException ex)
+      {
+        errors.incrementAndGet();
+      }
+    }
+
+    protected void handleMessageFromServer(Object msg)
+    {
+      long now = System.nanoTime();
+      String text = msg.toString();
+      int tag = text.lastIndexOf(TIME_TAG);
+      if (tag < 0 || !recording)
+        return;
+
+      try
+      {
+        latencies.record(now - Long.parseLong(text.substring(tag + TIME_TAG.length())));
+        delivered.incrementAndGet();
+      }
+      catch (NumberFormatException ex) {}  // someone else's message
+    }
+  }
+
+  //Class methods ***************************************************
+
+  public static void main(String[] args) throws Exception
+  {
+    String host = args.length > 0 ? args[0] : "localhost";
+    int port = args.length > 1 ? Integer.parseInt(args[1]) : 5555;
+    int users = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+    double rate = args.length > 3 ? Double.parseDouble(args[3]) : 1;
+    int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 30;
+    int ramp = args.length > 5 ? Integer.parseInt(args[5]) : 5;
+    int roomCount = args.length > 6 ? Integer.parseInt(args[6]) : 1;
+
+    System.out.println("Ramping up " + users + " users sending " + rate
+      + " messages/s each to " + host + ":" + port + " in " + roomCount
+      + " room(s)");
+
+    long period = (long)(1000000000L / rate);
+    ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+      Math.max(2, Runtime.getRuntime().availableProcessors()));
+    User[] simulated = new User[users];
+    long rampPause = users > 0 ? ramp * 1000000000L / users : 0;
+    for (int i=0; i<users; i++)
+    {
+      final User user = new User(host, port, "user" + i,
+        roomCount > 1 ? "room" + (i % roomCount) : null, period);
+      simulated[i] = user;
+      try
+      {
+        user.start();
+        scheduler.scheduleAtFixedRate(new Runnable()
+        {
+          public void run()
+          {
+            user.sendNext();
+          }
+        }, 0, period, TimeUnit.NANOSECONDS);
+      }
+      catch (IOException ex)
+      {
+        errors.incrementAndGet();
+      }
+      if (rampPause > 0)
+        TimeUnit.NANOSECONDS.sleep(rampPause);
+    }
+
+    recording = true;
+    long start = System.nanoTime();
+    Thread.sleep(seconds * 1000L);
+    recording = false;
+    double elapsed = (System.nanoTime() - start) / 1e9;
+
+    scheduler.shutdownNow();
+    for (int i=0; i<users; i++)
+    {
+      try
+      {
+        simulated[i].closeConnection();
+      }
+      catch (IOException ex) {}
+    }
+
+    System.out.println(String.format(
+      "sent %d (%.0f/s), delivered %d (%.0f/s), errors %d",
+      sent.get(), sent.get() / elapsed, delivered.get(),
+      delivered.get() / elapsed, errors.get()));
+    System.out.println(String.format(
+      "delivery latency (us): p50 %.1f  p99 %.1f  p99.9 %.1f  max %.1f",
+      latencies.getValueAtPercentile(50) / 1000.0,
+      latencies.getValueAtPercentile(99) / 1000.0,
+      latencies.getValueAtPercentile(99.9) / 1000.0,
+      latencies.getMaxValue() / 1000.0));
+    System.out.println();
+    latencies.printPercentiles(System.out, 1000.0);
+
+    System.exit(0);
+  }
+}
+//End of LoadGenerator class
@@ -0,0 +1,103 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import common.CommandDispatcher;
+
+/**
+ * Cost of the parsing EchoServer does on every message to recognize its
+ * commands: with String.split, as it used to, and with a
+ * CommandDispatcher, for a login, a private message and a plain chat
+ * line.
+ *
+ * <pre>
+ * java -jar jmh/target/benchmarks.jar LoginParsingBenchmarks
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class LoginParsingBenchmarks
+{
+  //Instance variables **********************************************
+
+  @Param({ "#login alice", "#msg bob are you coming tonight?", Fixtures.MESSAGE })
+  String line;
+
+  /**
+   * The commands of EchoServer, storing the argument they extract in
+   * the array passed to dispatch.
+   */
+  CommandDispatcher<String[]> commands;
+
+  final String[] result = new String[1];
+
+  //Instance methods ************************************************
+
+  @Setup
+  public void setUp()
+  {
+    commands = new CommandDispatcher<String[]>();
+    CommandDispatcher.Handler<String[]> firstArgument = new CommandDispatcher.Handler<String[]>()
+    {
+      public boolean handle(String[] result, String line, int args)
+      {
+        result[0] = CommandDispatcher.token(line, args);
+        return result[0] != null;
+      }
+    };
+    commands.register("#login", firstArgument);
+    commands.register("#join", firstArgument);
+    commands.register("#leave", firstArgument);
+    commands.register("#msg", new CommandDispatcher.Handler<String[]>()
+    {
+      public boolean handle(String[] result, String line, int args)
+      {
+        result[0] = CommandDispatcher.afterToken(line, args);
+        return true;
+      }
+    });
+  }
+
+  @Benchmark
+  public String dispatch()
+  {
+    result[0] = null;
+    commands.dispatch(result, line);
+    return result[0];
+  }
+
+  @Benchmark
+  public String split()
+  {
+    return parseCommandWithSplit(line);
+  }
+
+  /**
+   * The chain of tests EchoServer.handleMessageFromClient made before
+   * it used a CommandDispatcher.
+   *
+   * @return the argument of the command, or null.
+   */
+  static String parseCommandWithSplit(String msg)
+  {
+    if (msg.startsWith("#login") && msg.split(" ").length > 1)
+      return msg.split(" ")[1];
+    if (msg.startsWith("#join") && msg.split(" ").length > 1)
+      return msg.split(" ")[1];
+    if (msg.equals("#leave"))
+      return null;
+    if (msg.startsWith("#msg "))
+    {
+      String[] parts = msg.split(" ", 3);
+      return parts.length < 3 ? null : parts[2];
+    }
+    return null;
+  }
+}
+//End of LoginParsingBenchmarks class
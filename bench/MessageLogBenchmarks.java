@@ -0,0 +1,154 @@
+package bench;
+
+import java.io.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ocsf.common.*;
+import ocsf.server.*;
+
+/**
+ * Benchmarks of the chat log:
+ * <ul>
+ * <li>appending a chat line, without and with waiting for it to be
+ *   synced, and the throughput of group commits when many threads wait
+ *   for syncs at once;</li>
+ * <li>reading a record at a random offset through the index;</li>
+ * <li>a broadcast to 100 clients, from sendToAllClients until every
+ *   client got the message, without and with logging it, to check that
+ *   logging does not slow the broadcast path down.</li>
+ * </ul>
+ *
+ * The log is written to a temporary directory, deleted at the end of
+ * each trial.
+ *
+ * <pre>
+ * java -jar jmh/target/benchmarks.jar MessageLogBenchmarks
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageLogBenchmarks
+{
+  //Inner classes ***************************************************
+
+  /**
+   * A log in a temporary directory, holding enough records for reads
+   * to hit several pages of its index.
+   */
+  @State(Scope.Benchmark)
+  public static class Log
+  {
+    static final int RECORDS = 100000;
+
+    File directory;
+
+    MessageLog log;
+
+    String message = Fixtures.MESSAGE;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+      directory = File.createTempFile("ocsf-log", "");
+      directory.delete();
+      log = new MessageLog(directory, Codecs.TEXT,
+        MessageLog.DEFAULT_SEGMENT_SIZE, MessageLog.DEFAULT_SYNC_INTERVAL);
+      for (int i=0; i<RECORDS; i++)
+        log.append(message);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+      log.close();
+      File[] files = directory.listFiles();
+      for (int i=0; i<files.length; i++)
+        files[i].delete();
+      directory.delete();
+    }
+  }
+
+  /**
+   * A server in selector mode with 100 clients, and a log.
+   */
+  @State(Scope.Benchmark)
+  public static class Broadcast extends Log
+  {
+    static final int CLIENTS = 100;
+
+    @Param({ "false", "true" })
+    boolean logged;
+
+    AbstractServer server;
+
+    Fixtures.BenchClient[] clients;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception
+    {
+      server = Fixtures.startServer(AbstractServer.SELECTOR);
+      clients = Fixtures.connect(server, CLIENTS, false);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception
+    {
+      Fixtures.disconnect(server, clients);
+    }
+  }
+
+  //Instance methods ************************************************
+
+  @Benchmark
+  public long append(Log state) throws IOException
+  {
+    return state.log.append(new String(state.message));
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void appendSync(Log state) throws IOException
+  {
+    state.log.append(state.message);
+    state.log.sync();
+  }
+
+  /**
+   * Many writers waiting for syncs at once share them.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  @Threads(16)
+  public void groupCommit(Log state) throws IOException
+  {
+    state.log.append(state.message);
+    state.log.sync();
+  }
+
+  @Benchmark
+  public Object readSeek(Log state) throws Exception
+  {
+    long end = state.log.getEndOffset();
+    return state.log.read(ThreadLocalRandom.current().nextLong(end));
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void broadcast(Broadcast state) throws IOException
+  {
+    long expected = Fixtures.BenchClient.received.get() + Broadcast.CLIENTS;
+    EncodedMessage line = new EncodedMessage(new String(state.message));
+    state.server.sendToAllClients(line);
+    if (state.logged)
+      state.log.append("general\t" + line.getMessage()); //as EchoServer logs it
+    Fixtures.awaitReceived(expected);
+  }
+}
+//End of MessageLogBenchmarks class
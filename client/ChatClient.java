@@ -20,6 +20,26 @@ import java.net.Socket;
  */
 public class ChatClient extends AbstractClient
 {
+  //Class variables *************************************************
+
+  /**
+   * The longest delay before trying to reopen a lost connection, in
+   * milliseconds. Doubles after each failed attempt.
+   */
+  final public static long RECONNECT_DELAY = 500;
+
+  /**
+   * The longest delay between two attempts to reopen a lost
+   * connection, in milliseconds.
+   */
+  final public static long MAX_RECONNECT_DELAY = 30000;
+
+  /**
+   * The number of messages kept while the connection is being
+   * reopened.
+   */
+  final public static int RECONNECT_BUFFER_SIZE = 100;
+
   //Instance variables **********************************************
   
   /**
@@ -28,6 +48,13 @@ public class ChatClient extends AbstractClient
    */
   ChatIF clientUI; 
 
+  /**
+   * The log of the client, written to the console by a thread of
+   * the logger. Only for diagnostics of the connection; replies to
+   * the user are printed directly.
+   */
+  private static final AsyncLogger LOG = AsyncLogger.getDefault();
+
   /**
    * username string varible to store the name specified by a user
    */
@@ -66,6 +93,8 @@ public class ChatClient extends AbstractClient
     
     this.username = username;
     this.clientUI = clientUI;
+    //clients survive a restart of the server, the server console does not
+    if(!isServer) setReconnect(RECONNECT_DELAY, MAX_RECONNECT_DELAY, RECONNECT_BUFFER_SIZE);
     openConnection();
     //send client login id to server
     if(!isServer) sendToServer("#login " + username);
@@ -102,83 +131,152 @@ public class ChatClient extends AbstractClient
       sendToServer(message);
 
       // Invoke connectionException if a connection to the server cannot be established
-      if(!isServer && !isConnected()) connectionException(new IOException());
+      if(!isServer && !isConnected() && !isReconnecting()) connectionException(new IOException());
 
     }
     catch(IOException e)
     {
+      if(isReconnecting()){
+        clientUI.display("Message not sent: still reconnecting to the server");
+        return;
+      }
       clientUI.display
         ("Could not send message to server.  Terminating client.");
       quit();
     }
   }
 
-  private void handleClientFunctions(String msg){
-    if(msg.equals("#quit")){
-      disconnectFromServer(); //see method definition below this method
-      System.out.println("Quitting the program");
-      quit();
-
-    }else if(msg.equals("#logoff")){
-      disconnectFromServer();
-
-    }else if(msg.startsWith("#sethost") || msg.startsWith("#setport")){
+  /**
+   * The commands of the client, looked up in a table rather than by
+   * comparing the line with each of them.
+   */
+  private static final CommandDispatcher<ChatClient> COMMANDS =
+    new CommandDispatcher<ChatClient>();
 
-      boolean isPort = msg.startsWith("#setport");
+  static{
+    COMMANDS.registerExact("#quit", new CommandDispatcher.Handler<ChatClient>(){
+      public boolean handle(ChatClient client, String line, int args){
+        client.disconnectFromServer(); //see method definition below this method
+        System.out.println("Quitting the program");
+        client.quit();
+        return true;
+      }
+    });
 
-      if(isConnected()){
-        System.out.println("You must log out (#logoff) before setting a " +
-        (isPort ? "port" : "host"));
-        return;
+    COMMANDS.registerExact("#logoff", new CommandDispatcher.Handler<ChatClient>(){
+      public boolean handle(ChatClient client, String line, int args){
+        client.disconnectFromServer();
+        return true;
       }
+    });
 
-      if(msg.split(" ").length < 2){
-        System.out.println("1 argument required: " + 
-        (isPort ? "#setport <port> - No port specified" :
-        "#sethost <host> - No host specified"));
-        return;
+    COMMANDS.register("#sethost", new CommandDispatcher.Handler<ChatClient>(){
+      public boolean handle(ChatClient client, String line, int args){
+        String newHost = client.argumentOf("host", line, args);
+        if(newHost != null){
+          client.setHost(newHost);
+          System.out.println("Host set to: "+newHost);
+        }
+        return true;
       }
+    });
 
-      if(!isPort){
-        String newHost = msg.split(" ")[1];
-        setHost(newHost);
-        System.out.println("Host set to: "+newHost);
-        return;
+    COMMANDS.register("#setport", new CommandDispatcher.Handler<ChatClient>(){
+      public boolean handle(ChatClient client, String line, int args){
+        String port = client.argumentOf("port", line, args);
+        if(port == null)
+          return true;
+
+        try{
+          int newPort = Integer.parseInt(port);
+          client.setPort(newPort);
+          System.out.println("Port set to: "+Integer.toString(newPort));
+        }catch(NumberFormatException e){
+          System.out.println("Error: port must be an integer");
+        }
+        return true;
       }
+    });
+
+    COMMANDS.registerExact("#login", new CommandDispatcher.Handler<ChatClient>(){
+      public boolean handle(ChatClient client, String line, int args){
+        if(client.isConnected() || client.isReconnecting()){
+          System.out.println(
+            "You first must log out (#logoff) before you can log in again");
+          return true;
+        }
 
-      try{
-        int newPort = Integer.parseInt(msg.split(" ")[1]);
-        setPort(newPort);
-        System.out.println("Port set to: "+Integer.toString(newPort));
-      }catch(NumberFormatException e){
-        System.out.println("Error: port must be an integer");
+        try{
+          client.openConnection();
+          client.sendToServer("#login " + client.username);
+        }catch(IOException e){
+          System.out.println("Couldn't connect to the server. Try again.");
+        }
+        return true;
       }
+    });
 
-    }else if(msg.equals("#login")){
-      
-      if(isConnected()){
-        System.out.println(
-          "You first must log out (#logoff) before you can log in again");
-          return;
+    //rooms and login ids are kept by the server
+    CommandDispatcher.Handler<ChatClient> forward = new CommandDispatcher.Handler<ChatClient>(){
+      public boolean handle(ChatClient client, String line, int args){
+        if(!client.isConnected() && !client.isReconnecting()){
+          System.out.println("You must be logged in first");
+          return true;
+        }
+
+        try{
+          client.sendToServer(line);
+        }catch(IOException e){
+          LOG.warn("Could not send message to server", "error", e.getMessage());
+        }
+        return true;
       }
+    };
+    COMMANDS.register("#join", forward);
+    COMMANDS.register("#leave", forward);
+    COMMANDS.register("#msg", forward);
 
-      try{
-        openConnection();
-        sendToServer("#login " + username);
-      }catch(IOException e){
-        System.out.println("Couldn't connect to the server. Try again.");
+    COMMANDS.registerExact("#gethost", new CommandDispatcher.Handler<ChatClient>(){
+      public boolean handle(ChatClient client, String line, int args){
+        System.out.println("Current host: " + client.getHost());
+        return true;
       }
-      
-    }else if(msg.equals("#gethost") || msg.equals("#getport")){
-      boolean isPort = msg.equals("#getport");
+    });
 
-      System.out.println("Current " + (isPort ? "port: " + getPort() :
-      "host: " + getHost()));
+    COMMANDS.registerExact("#getport", new CommandDispatcher.Handler<ChatClient>(){
+      public boolean handle(ChatClient client, String line, int args){
+        System.out.println("Current port: " + client.getPort());
+        return true;
+      }
+    });
+  }
 
-    }else
+  private void handleClientFunctions(String msg){
+    if(!COMMANDS.dispatch(this, msg))
       System.out.println("Invalid command: '"+msg+"' is not recognized");
   }
 
+  /**
+   * Returns the argument of #sethost or #setport, which may only be
+   * used while logged off.
+   *
+   * @param what "host" or "port".
+   * @return The argument, or null after telling the user why there
+   *         is none.
+   */
+  private String argumentOf(String what, String line, int args){
+    if(isConnected()){
+      System.out.println("You must log out (#logoff) before setting a " + what);
+      return null;
+    }
+
+    String argument = CommandDispatcher.token(line, args);
+    if(argument == null)
+      System.out.println("1 argument required: #set" + what + " <" + what +
+        "> - No " + what + " specified");
+    return argument;
+  }
+
   private void disconnectFromServer(){
     try{
       closeConnection();
@@ -191,9 +289,27 @@ public class ChatClient extends AbstractClient
 
   @Override
   protected void connectionException(Exception exception){
+    if(isReconnecting()){
+      LOG.warn("Lost the connection to the server, reconnecting", "error", exception.getMessage());
+      return;
+    }
     System.out.println("The server has shut down. Quitting.");
     quit();
   }
+
+  /**
+   * Logs in again once a lost connection has been reopened, before
+   * the messages typed meanwhile are sent.
+   */
+  @Override
+  protected void reconnected(){
+    try{
+      sendToServer("#login " + username);
+      LOG.info("Reconnected to the server", "host", getHost(), "port", getPort());
+    }catch(IOException e){
+      LOG.warn("Could not log in again", "error", e.getMessage());
+    }
+  }
   
   /**
    * This method terminates the client.
@@ -0,0 +1,459 @@
+package common;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A logger that never makes the logging thread wait for the console.
+ * Logging an event only fills a slot of a ring of preallocated events;
+ * a background thread formats the events and writes them, so string
+ * building and console I/O happen off the thread that logged.
+ *
+ * Events are structured: a message and up to two named values, written
+ * as one line:
+ *
+ * <pre>
+ * 12:04:31.337 INFO  Message received msg="hello all" from=alice
+ * </pre>
+ *
+ * Events below the level of the logger are discarded before anything
+ * is recorded. When the ring is full, because events are logged faster
+ * than the console takes them, new events are dropped and counted
+ * rather than blocking the caller.
+ *
+ * Pending events are written when the JVM exits, including through
+ * System.exit.
+ *
+ * @see #getDefault()
+ */
+public class AsyncLogger
+{
+  //Class variables *************************************************
+
+  /**
+   * Level of detailed events, discarded by default.
+   */
+  final public static int DEBUG = 0;
+
+  /**
+   * Level of normal events.
+   */
+  final public static int INFO = 1;
+
+  /**
+   * Level of events reporting something unexpected.
+   */
+  final public static int WARN = 2;
+
+  /**
+   * Level of events reporting a failure.
+   */
+  final public static int ERROR = 3;
+
+  /**
+   * Level discarding every event.
+   */
+  final public static int OFF = 4;
+
+  /**
+   * The names of the levels, as written.
+   */
+  private static final String[] LEVEL_NAMES = { "DEBUG", "INFO ", "WARN ", "ERROR" };
+
+  /**
+   * The default number of events in the ring.
+   */
+  final public static int DEFAULT_CAPACITY = 8192;
+
+  /**
+   * The logger shared by the applications of the process.
+   */
+  private static AsyncLogger defaultLogger;
+
+  //Inner classes ***************************************************
+
+  /**
+   * A slot of the ring.
+   */
+  private static final class Event
+  {
+    int level;
+    long time;
+    String message;
+    String key1;
+    Object value1;
+    String key2;
+    Object value2;
+  }
+
+  //Instance variables **********************************************
+
+  /**
+   * The events. Never reallocated.
+   */
+  private final Event[] ring;
+
+  /**
+   * For each slot, the sequence number of the event it holds once the
+   * event is completely filled in.
+   */
+  private final AtomicLongArray published;
+
+  /**
+   * ring.length - 1; the capacity is a power of two.
+   */
+  private final int mask;
+
+  /**
+   * Sequence number of the next event logged.
+   */
+  private final AtomicLong next = new AtomicLong();
+
+  /**
+   * Sequence number of the next event written.
+   */
+  private final AtomicLong written = new AtomicLong();
+
+  /**
+   * Number of events dropped because the ring was full.
+   */
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * The lowest level logged.
+   */
+  private volatile int level;
+
+  /**
+   * Where the events are written.
+   */
+  private final PrintStream out;
+
+  /**
+   * The thread writing the events.
+   */
+  private final Thread writer;
+
+  /**
+   * Set while the writer has nothing to do and may be parked.
+   */
+  private volatile boolean idle;
+
+  //Constructors ****************************************************
+
+  /**
+   * Constructs a logger and starts its writer thread.
+   *
+   * @param out Where the events are written.
+   * @param level The lowest level logged.
+   * @param capacity The number of events in the ring, rounded up to a
+   *          power of two.
+   */
+  public AsyncLogger(PrintStream out, int level, int capacity)
+  {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    this.ring = new Event[size];
+    for (int i = 0; i < size; i++)
+      ring[i] = new Event();
+    this.published = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++)
+      published.set(i, -1);
+    this.mask = size - 1;
+    this.out = out;
+    this.level = level;
+
+    writer = new Thread("AsyncLogger writer")
+    {
+      public void run()
+      {
+        writeEvents();
+      }
+    };
+    writer.setDaemon(true);
+    writer.start();
+
+    Runtime.getRuntime().addShutdownHook(new Thread()
+    {
+      public void run()
+      {
+        flush();
+      }
+    });
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Returns the logger shared by the applications of the process,
+   * writing to the console. Its level is read from the "log.level"
+   * system property (DEBUG, INFO, WARN, ERROR or OFF) and is INFO by
+   * default.
+   *
+   * @return The logger.
+   */
+  public static synchronized AsyncLogger getDefault()
+  {
+    if (defaultLogger == null)
+      defaultLogger = new AsyncLogger(System.out,
+        parseLevel(System.getProperty("log.level"), INFO), DEFAULT_CAPACITY);
+    return defaultLogger;
+  }
+
+  /**
+   * Returns the level of a name.
+   *
+   * @param name The name of the level, in any case.
+   * @param defaultLevel The level returned for an unknown name.
+   * @return The level.
+   */
+  public static int parseLevel(String name, int defaultLevel)
+  {
+    if (name == null)
+      return defaultLevel;
+    if (name.equalsIgnoreCase("OFF"))
+      return OFF;
+    for (int i = 0; i < LEVEL_NAMES.length; i++)
+    {
+      if (LEVEL_NAMES[i].trim().equalsIgnoreCase(name.trim()))
+        return i;
+    }
+    return defaultLevel;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Logs an event.
+   *
+   * @param level The level of the event.
+   * @param message The message, a constant preferably.
+   * @param key1 The name of the first value, or null.
+   * @param value1 The first value.
+   * @param key2 The name of the second value, or null.
+   * @param value2 The second value.
+   */
+  public void log(int level, String message, String key1, Object value1,
+    String key2, Object value2)
+  {
+    if (level < this.level)
+      return;
+
+    long sequence;
+    do
+    {
+      sequence = next.get();
+      if (sequence - written.get() >= ring.length)
+      {
+        dropped.incrementAndGet();
+        return;
+      }
+    }
+    while (!next.compareAndSet(sequence, sequence + 1));
+
+    Event event = ring[(int)sequence & mask];
+    event.level = level;
+    event.time = System.currentTimeMillis();
+    event.message = message;
+    event.key1 = key1;
+    event.value1 = value1;
+    event.key2 = key2;
+    event.value2 = value2;
+    published.set((int)sequence & mask, sequence);
+
+    if (idle)
+      LockSupport.unpark(writer);
+  }
+
+  public void debug(String message)
+  {
+    log(DEBUG, message, null, null, null, null);
+  }
+
+  public void debug(String message, String key, Object value)
+  {
+    log(DEBUG, message, key, value, null, null);
+  }
+
+  public void debug(String message, String key1, Object value1,
+    String key2, Object value2)
+  {
+    log(DEBUG, message, key1, value1, key2, value2);
+  }
+
+  public void info(String message)
+  {
+    log(INFO, message, null, null, null, null);
+  }
+
+  public void info(String message, String key, Object value)
+  {
+    log(INFO, message, key, value, null, null);
+  }
+
+  public void info(String message, String key1, Object value1,
+    String key2, Object value2)
+  {
+    log(INFO, message, key1, value1, key2, value2);
+  }
+
+  public void warn(String message)
+  {
+    log(WARN, message, null, null, null, null);
+  }
+
+  public void warn(String message, String key, Object value)
+  {
+    log(WARN, message, key, value, null, null);
+  }
+
+  public void warn(String message, String key1, Object value1,
+    String key2, Object value2)
+  {
+    log(WARN, message, key1, value1, key2, value2);
+  }
+
+  public void error(String message)
+  {
+    log(ERROR, message, null, null, null, null);
+  }
+
+  public void error(String message, String key, Object value)
+  {
+    log(ERROR, message, key, value, null, null);
+  }
+
+  public void error(String message, String key1, Object value1,
+    String key2, Object value2)
+  {
+    log(ERROR, message, key1, value1, key2, value2);
+  }
+
+  /**
+   * Returns true if events of a level are logged. Lets callers skip
+   * computing values for events that would be discarded.
+   *
+   * @param level The level.
+   * @return true if events of this level are logged.
+   */
+  public boolean isEnabled(int level)
+  {
+    return level >= this.level;
+  }
+
+  /**
+   * Sets the lowest level logged.
+   *
+   * @param level DEBUG, INFO, WARN, ERROR or OFF.
+   */
+  public void setLevel(int level)
+  {
+    this.level = level;
+  }
+
+  /**
+   * Returns the lowest level logged.
+   *
+   * @return The level.
+   */
+  public int getLevel()
+  {
+    return level;
+  }
+
+  /**
+   * Returns the number of events dropped because the ring was full.
+   *
+   * @return The number of events dropped.
+   */
+  public long getDroppedCount()
+  {
+    return dropped.get();
+  }
+
+  /**
+   * Waits until the events logged before the call are written, or for
+   * a second at most.
+   */
+  public void flush()
+  {
+    long target = next.get();
+    long deadline = System.currentTimeMillis() + 1000;
+    while (written.get() < target && System.currentTimeMillis() < deadline)
+    {
+      LockSupport.unpark(writer);
+      Thread.yield();
+    }
+    out.flush();
+  }
+
+  /**
+   * The loop of the writer thread: writes the events in the order in
+   * which they were logged, and flushes the console whenever there is
+   * nothing left to write.
+   */
+  private void writeEvents()
+  {
+    SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+    Date date = new Date();
+    StringBuilder line = new StringBuilder(256);
+    long reportedDrops = 0;
+
+    while (true)
+    {
+      long sequence = written.get();
+      int slot = (int)sequence & mask;
+      if (published.get(slot) != sequence)
+      {
+        out.flush();
+        long drops = dropped.get();
+        if (drops != reportedDrops)
+        {
+          out.println("AsyncLogger: " + (drops - reportedDrops) + " events dropped");
+          reportedDrops = drops;
+        }
+
+        idle = true;
+        if (published.get(slot) != sequence)
+          LockSupport.parkNanos(10000000L);
+        idle = false;
+        continue;
+      }
+
+      Event event = ring[slot];
+      date.setTime(event.time);
+      line.setLength(0);
+      line.append(timeFormat.format(date)).append(' ')
+        .append(LEVEL_NAMES[event.level]).append(' ').append(event.message);
+      appendValue(line, event.key1, event.value1);
+      appendValue(line, event.key2, event.value2);
+
+      // Release the slot before writing, the values are not needed
+      event.message = null;
+      event.value1 = null;
+      event.value2 = null;
+      written.set(sequence + 1);
+
+      out.println(line);
+    }
+  }
+
+  /**
+   * Appends a named value to a line, quoting it if it has spaces.
+   */
+  private static void appendValue(StringBuilder line, String key, Object value)
+  {
+    if (key == null)
+      return;
+
+    String text = String.valueOf(value);
+    line.append(' ').append(key).append('=');
+    if (text.indexOf(' ') >= 0 || text.isEmpty())
+      line.append('"').append(text.replace("\"", "\\\"")).append('"');
+    else
+      line.append(text);
+  }
+}
+//End of AsyncLogger class
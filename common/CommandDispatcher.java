@@ -0,0 +1,241 @@
+package common;
+
+/**
+ * Recognizes the commands typed in the chat, such as "#login alice",
+ * and calls the handler registered for each of them.
+ *
+ * A line is a command if it starts with '#'; its name runs up to the
+ * first space and its arguments follow. The line is scanned once, and
+ * the handler is found with an open addressing table compared against
+ * the characters of the line directly, so recognizing a command, or
+ * telling that a line is not one, allocates nothing: no split, no
+ * regular expression, no substring. Handlers extract the arguments
+ * they need with the static methods of this class. Commands that take
+ * no argument are registered with registerExact, so that a line with
+ * anything after their name, e.g. "#quit now", is not taken for them.
+ *
+ * Handlers must be registered before the dispatcher is used; after
+ * that it may be used by several threads at once.
+ *
+ * @param <C> The type of the object handlers act on, e.g. the
+ *          connection a command came from.
+ */
+public class CommandDispatcher<C>
+{
+  //Inner classes ***************************************************
+
+  /**
+   * The code run for a command.
+   */
+  public interface Handler<C>
+  {
+    /**
+     * Handles a command.
+     *
+     * @param context The object given to dispatch.
+     * @param line The whole line.
+     * @param args The index in the line of the first argument, or the
+     *          length of the line if there is none.
+     * @return false if the command is not valid, e.g. lacks an
+     *          argument, and must be treated as if it were not a
+     *          command.
+     */
+    boolean handle(C context, String line, int args);
+  }
+
+  //Instance variables **********************************************
+
+  /**
+   * The names of the commands, at the index given by their hash.
+   */
+  private String[] names = new String[16];
+
+  /**
+   * The handlers of the commands, at the same index as their name.
+   */
+  private Object[] handlers = new Object[16];
+
+  /**
+   * Whether each command must be the whole line, at the same index as
+   * its name.
+   */
+  private boolean[] exact = new boolean[16];
+
+  /**
+   * The number of commands registered.
+   */
+  private int count;
+
+  //Instance methods ************************************************
+
+  /**
+   * Registers the handler of a command, replacing any previous one.
+   *
+   * @param name The name of the command, '#' included.
+   * @param handler The handler.
+   */
+  public void register(String name, Handler<C> handler)
+  {
+    add(name, handler, false);
+  }
+
+  /**
+   * Registers the handler of a command that takes no argument,
+   * replacing any previous one. A line is only this command if it is
+   * exactly its name, without trailing spaces or words.
+   *
+   * @param name The name of the command, '#' included.
+   * @param handler The handler.
+   */
+  public void registerExact(String name, Handler<C> handler)
+  {
+    add(name, handler, true);
+  }
+
+  /**
+   * Handles a line if it is a registered command.
+   *
+   * @param context Given to the handler.
+   * @param line The line.
+   * @return true if the line was a registered command and its handler
+   *          accepted it.
+   */
+  @SuppressWarnings("unchecked")
+  public boolean dispatch(C context, String line)
+  {
+    if (line.length() == 0 || line.charAt(0) != '#')
+      return false;
+
+    int end = tokenEnd(line, 0);
+    int hash = 0;
+    for (int i = 0; i < end; i++)
+      hash = 31 * hash + line.charAt(i);
+
+    int mask = names.length - 1;
+    for (int i = mix(hash) & mask; names[i] != null; i = (i + 1) & mask)
+    {
+      String name = names[i];
+      if (name.length() == end && line.startsWith(name))
+      {
+        if (exact[i] && end != line.length())
+          return false;
+        return ((Handler<C>)handlers[i]).handle(context, line, skipSpaces(line, end));
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Adds a command to the table, growing it if needed.
+   */
+  private void add(String name, Object handler, boolean whole)
+  {
+    if ((count + 1) * 2 > names.length)
+    {
+      // Keep the table at most half full
+      String[] oldNames = names;
+      Object[] oldHandlers = handlers;
+      boolean[] oldExact = exact;
+      names = new String[oldNames.length * 2];
+      handlers = new Object[oldNames.length * 2];
+      exact = new boolean[oldNames.length * 2];
+      count = 0;
+      for (int i = 0; i < oldNames.length; i++)
+      {
+        if (oldNames[i] != null)
+          put(oldNames[i], oldHandlers[i], oldExact[i]);
+      }
+    }
+    put(name, handler, whole);
+  }
+
+  /**
+   * Stores a command in the table, which has room for it.
+   */
+  private void put(String name, Object handler, boolean whole)
+  {
+    int mask = names.length - 1;
+    int i = mix(name.hashCode()) & mask;
+    while (names[i] != null && !names[i].equals(name))
+      i = (i + 1) & mask;
+    if (names[i] == null)
+      count++;
+    names[i] = name;
+    handlers[i] = handler;
+    exact[i] = whole;
+  }
+
+  /**
+   * Spreads the bits of a hash code, as the names of the commands
+   * differ mostly in their last characters.
+   */
+  private static int mix(int hash)
+  {
+    return hash ^ (hash >>> 16);
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Returns the index of the first character at or after an index
+   * that is not a space.
+   *
+   * @param line The line.
+   * @param from Where to start.
+   * @return The index, or the length of the line.
+   */
+  public static int skipSpaces(String line, int from)
+  {
+    while (from < line.length() && line.charAt(from) == ' ')
+      from++;
+    return from;
+  }
+
+  /**
+   * Returns the index of the first space at or after an index.
+   *
+   * @param line The line.
+   * @param from Where to start.
+   * @return The index, or the length of the line.
+   */
+  public static int tokenEnd(String line, int from)
+  {
+    while (from < line.length() && line.charAt(from) != ' ')
+      from++;
+    return from;
+  }
+
+  /**
+   * Returns the word starting at an index, e.g. the first argument of
+   * a command when given the index passed to its handler.
+   *
+   * @param line The line.
+   * @param from The index of the word.
+   * @return The word, or null if there is none.
+   */
+  public static String token(String line, int from)
+  {
+    int start = skipSpaces(line, from);
+    if (start == line.length())
+      return null;
+    return line.substring(start, tokenEnd(line, start));
+  }
+
+  /**
+   * Returns the rest of a line after the word starting at an index,
+   * e.g. the text of "#msg alice some text".
+   *
+   * @param line The line.
+   * @param from The index of the word.
+   * @return The rest of the line, or null if there is nothing after
+   *          the word.
+   */
+  public static String afterToken(String line, int from)
+  {
+    int start = skipSpaces(line, tokenEnd(line, skipSpaces(line, from)));
+    if (start == line.length())
+      return null;
+    return line.substring(start);
+  }
+}
+//End of CommandDispatcher class
@@ -6,6 +6,15 @@ package ocsf.client;
 
 import java.io.*;
 import java.net.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+
+import ocsf.common.Codecs;
+import ocsf.common.Frames;
+import ocsf.common.MessageCodec;
+import ocsf.common.StreamResetPolicy;
+import ocsf.common.TimerWheel;
+import ocsf.common.VirtualThreads;
 
 /**
  * The <code> AbstractClient </code> contains all the methods necessary to set
@@ -50,6 +59,171 @@ public abstract class AbstractClient implements Runnable {
 	 */
 	private ObjectInputStream	input;
 
+	/**
+	 * Decides when the object stream going to the server is reset.
+	 */
+	private StreamResetPolicy	resetPolicy;
+
+	/**
+	 * The number of messages after which the object stream is reset, or 0.
+	 */
+	private int					resetMessages	= StreamResetPolicy.DEFAULT_MESSAGES;
+
+	/**
+	 * The number of bytes after which the object stream is reset, or 0.
+	 */
+	private long				resetBytes		= StreamResetPolicy.DEFAULT_BYTES;
+
+	/**
+	 * The stream to handle frames going to the server when the framed
+	 * protocol is used.
+	 */
+	private OutputStream		frameOutput;
+
+	/**
+	 * The stream to handle frames from the server when the framed protocol
+	 * is used.
+	 */
+	private DataInputStream		frameInput;
+
+	/**
+	 * Indicates if the next connection uses the framed protocol rather than
+	 * a legacy object stream. Set to true by default.
+	 */
+	private boolean				framedProtocol	= true;
+
+	/**
+	 * The codecs proposed to the server, in order of preference.
+	 */
+	private MessageCodec[]		codecs			= Codecs.defaults();
+
+	/**
+	 * The codec negotiated with the server, or null if a legacy object stream
+	 * is used.
+	 */
+	private MessageCodec		codec;
+
+	/**
+	 * Indicates if the reader of the next connection runs on a virtual
+	 * thread. Set to false by default.
+	 */
+	private boolean				virtualThreads	= false;
+
+	/**
+	 * The size of the buffer collecting outgoing messages, or 0 if every
+	 * message is written to the socket right away. Set to 0 by default.
+	 */
+	private int					batchSize		= 0;
+
+	/**
+	 * The longest time, in milliseconds, a message may wait in the buffer
+	 * before it is flushed, or 0 to flush only when the buffer is full or
+	 * flush() is called.
+	 */
+	private long				flushInterval	= 0;
+
+	/**
+	 * Indicates if Nagle's algorithm is disabled on the socket. Set to false
+	 * by default.
+	 */
+	private boolean				tcpNoDelay		= false;
+
+	/**
+	 * True while a timed flush of the buffer is pending.
+	 */
+	private boolean				flushScheduled;
+
+	/**
+	 * Lock serializing writes to the server.
+	 */
+	private final Object		writeLock		= new Object();
+
+	/**
+	 * The thread flushing the buffers of all batching clients and sending
+	 * the heartbeats of all clients, created when first needed.
+	 */
+	private static ScheduledExecutorService	flusher;
+
+	/**
+	 * How long, in milliseconds, a framed connection may stay without
+	 * traffic in either direction before a heartbeat is sent, or 0 to send
+	 * none. Set to 15 seconds by default.
+	 */
+	private long				heartbeatInterval	= 15000;
+
+	/**
+	 * How long, in milliseconds, the client waits for anything from the
+	 * server, heartbeats included, before it considers the connection dead.
+	 * Set to 45 seconds by default.
+	 */
+	private long				heartbeatTimeout	= 45000;
+
+	/**
+	 * When something was last read from the server, from
+	 * <code>System.nanoTime()</code>.
+	 */
+	private volatile long		lastRead;
+
+	/**
+	 * When something was last written to the server, from
+	 * <code>System.nanoTime()</code>.
+	 */
+	private volatile long		lastSent;
+
+	/**
+	 * The next heartbeat check, on the shared timer wheel, or null.
+	 */
+	private volatile TimerWheel.Timeout	heartbeatCheck;
+
+	/**
+	 * Set when the connection is closed because the server stopped
+	 * answering.
+	 */
+	private volatile boolean	heartbeatExpired;
+
+	/**
+	 * True while a heartbeat is queued to the flusher thread and not sent
+	 * yet.
+	 */
+	private volatile boolean	heartbeatQueued;
+
+	/**
+	 * The longest time, in milliseconds, before the first attempt to reopen
+	 * a lost connection, or 0 if lost connections are not reopened. Set to 0
+	 * by default.
+	 */
+	private long				reconnectDelay	= 0;
+
+	/**
+	 * The longest time, in milliseconds, between two attempts to reopen a
+	 * lost connection.
+	 */
+	private long				maxReconnectDelay;
+
+	/**
+	 * The maximum number of messages kept while the connection is being
+	 * reopened.
+	 */
+	private int					reconnectBufferSize;
+
+	/**
+	 * The messages sent while the connection is being reopened, sent once it
+	 * is. Guarded by the write lock.
+	 */
+	private final ArrayDeque<Object>	pending		= new ArrayDeque<Object>();
+
+	/**
+	 * True from the loss of the connection until it is reopened and the
+	 * pending messages are sent, or until closeConnection() is called.
+	 * Changed with the write lock held.
+	 */
+	private volatile boolean	reconnecting;
+
+	/**
+	 * The thread trying to reopen the connection, or null.
+	 */
+	private volatile Thread		reconnector;
+
 	/**
 	 * The thread created to read data from the server.
 	 */
@@ -104,8 +278,15 @@ public abstract class AbstractClient implements Runnable {
 		// Create the sockets and the data streams
 		try {
 			clientSocket = new Socket(host, port);
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
-			input = new ObjectInputStream(clientSocket.getInputStream());
+			clientSocket.setTcpNoDelay(tcpNoDelay);
+			if (framedProtocol) {
+				openFrameStreams();
+			} else {
+				resetPolicy = new StreamResetPolicy(resetMessages, resetBytes);
+				output = new ObjectOutputStream(resetPolicy.track(socketOutput()));
+				output.flush(); // the server waits for the stream header
+				input = new ObjectInputStream(clientSocket.getInputStream());
+			}
 		} catch (IOException ex)
 		// All three of the above must be closed when there is a failure
 		// to create any of them
@@ -118,34 +299,79 @@ public abstract class AbstractClient implements Runnable {
 			throw ex; // Rethrow the exception.
 		}
 
-		clientReader = new Thread(this); // Create the data reader thread
 		readyToStop = false;
-		clientReader.start(); // Start the thread
+		heartbeatExpired = false;
+		if (frameOutput != null && heartbeatInterval > 0) {
+			lastRead = lastSent = System.nanoTime();
+			scheduleHeartbeatCheck();
+		}
+
+		if (virtualThreads) {
+			clientReader = VirtualThreads.start(this, "OCSF client reader");
+		} else {
+			clientReader = new Thread(this); // Create the data reader thread
+			clientReader.start(); // Start the thread
+		}
 	}
 
 	/**
 	 * Sends an object to the server. This is the only way that methods should
-	 * communicate with the server.
+	 * communicate with the server. While a lost connection is being reopened,
+	 * the message is kept and sent once it is, unless too many messages are
+	 * kept already.
 	 * 
 	 * @param msg
 	 *            The message to be sent.
 	 * @exception IOException
 	 *                if an I/O error occurs when sending
+	 * @see #setReconnect(long, long, int)
 	 */
 	final public void sendToServer(Object msg) throws IOException {
-		if (clientSocket == null || output == null)
-			throw new SocketException("socket does not exist");
+		// The reconnected hook runs with the lock held: what it sends goes
+		// before the pending messages
+		boolean fromHook = Thread.holdsLock(writeLock);
 
-		output.writeObject(msg);
+		synchronized (writeLock) {
+			if (reconnecting && !fromHook) {
+				if (pending.size() >= reconnectBufferSize)
+					throw new IOException("too many messages waiting for the connection to be reopened");
+				pending.add(msg);
+				return;
+			}
+
+			write(msg);
+		}
+	}
+
+	/**
+	 * Sends the messages waiting in the batching buffer to the server right
+	 * away. Has no effect if batching is off or the buffer is empty.
+	 * 
+	 * @exception IOException
+	 *                if an I/O error occurs when sending
+	 */
+	final public void flush() throws IOException {
+		synchronized (writeLock) {
+			if (frameOutput != null)
+				frameOutput.flush();
+			else if (output != null)
+				output.flush();
+		}
 	}
 
 	/**
 	 * Reset the object output stream so we can use the same
 	 * buffer repeatedly. This would not normally be used, but is necessary
-    * in some circumstances when Java refuses to send data that it thinks has been sent.
+	 * in some circumstances when Java refuses to send data that it thinks has been sent.
 	 */
 	final public void forceResetAfterSend() throws IOException {
-      output.reset();
+		// Frames are self-contained, so only object streams keep a handle table
+		synchronized (writeLock) {
+			if (output != null) {
+				output.reset();
+				resetPolicy.wasReset();
+			}
+		}
 	}
 
 	/**
@@ -158,6 +384,20 @@ public abstract class AbstractClient implements Runnable {
 		// Prevent the thread from looping any more
 		readyToStop = true;
 
+		// Give up reopening a lost connection
+		synchronized (writeLock) {
+			reconnecting = false;
+			pending.clear();
+		}
+		Thread retrying = reconnector;
+		if (retrying != null)
+			retrying.interrupt();
+
+		try {
+			flush(); // do not lose batched messages
+		} catch (IOException ex) {
+		}
+
 		try {
 			closeAll();
 		} finally {
@@ -211,6 +451,222 @@ public abstract class AbstractClient implements Runnable {
 		this.host = host;
 	}
 
+	/**
+	 * @return true if the next connection uses the framed protocol.
+	 */
+	final public boolean isFramedProtocol() {
+		return framedProtocol;
+	}
+
+	/**
+	 * Selects between the framed protocol (the default) and a legacy object
+	 * stream for the next connection. The framed protocol is required by
+	 * servers running in selector mode; a legacy object stream is only needed
+	 * to talk to servers that predate it. The change only takes effect at the
+	 * time of the next call to openConnection().
+	 * 
+	 * @param framedProtocol
+	 *            true to use the framed protocol.
+	 */
+	final public void setFramedProtocol(boolean framedProtocol) {
+		this.framedProtocol = framedProtocol;
+	}
+
+	/**
+	 * Sets the codecs proposed to the server when the next connection uses
+	 * the framed protocol, in order of preference. By default the text codec
+	 * is preferred, with the serialization codec as a fallback; clients that
+	 * send objects other than strings should propose the serialization codec
+	 * first. The change only takes effect at the time of the next call to
+	 * openConnection().
+	 * 
+	 * @param codecs
+	 *            the codecs proposed, at most 254, with distinct ids between 1
+	 *            and <code>Codecs.MAX_ID</code>.
+	 * @see ocsf.common.Codecs
+	 */
+	final public void setCodecs(MessageCodec[] codecs) {
+		if (codecs.length == 0 || codecs.length > 254)
+			throw new IllegalArgumentException("between 1 and 254 codecs must be proposed");
+		Codecs.checkIds(codecs);
+
+		this.codecs = codecs.clone();
+	}
+
+	/**
+	 * @return the codec negotiated with the server, or null if the client is
+	 *         not connected or uses a legacy object stream.
+	 */
+	final public MessageCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Sets how often the object stream of a legacy connection is reset, so
+	 * that the objects it remembers, on both sides, do not accumulate for the
+	 * lifetime of the connection. The stream is reset after the given number
+	 * of messages or bytes, whichever comes first; 0 disables a limit. The
+	 * default is every 1000 messages or 1 MB. Framed connections are not
+	 * affected. The change only takes effect at the time of the next call to
+	 * openConnection().
+	 * 
+	 * @param messages
+	 *            the number of messages between resets.
+	 * @param bytes
+	 *            the number of bytes between resets.
+	 */
+	final public void setResetPolicy(int messages, long bytes) {
+		this.resetMessages = messages;
+		this.resetBytes = bytes;
+	}
+
+	/**
+	 * Turns write batching on or off. With batching, outgoing messages are
+	 * collected in a buffer and written to the socket together, when the
+	 * buffer is full, when the oldest message has waited for the flush
+	 * interval or when flush() is called. This suits clients sending many
+	 * messages in bursts; interactive clients are better off without it. When
+	 * batching, disabling Nagle's algorithm with setTcpNoDelay(true) avoids
+	 * delaying the flushes a second time. The change only takes effect at the
+	 * time of the next call to openConnection().
+	 * 
+	 * @param batchSize
+	 *            the size of the buffer in bytes, or 0 to turn batching off.
+	 * @param flushInterval
+	 *            the longest time, in milliseconds, a message may wait in the
+	 *            buffer, or 0 to flush only when the buffer is full or
+	 *            explicitly.
+	 */
+	final public void setBatching(int batchSize, long flushInterval) {
+		if (batchSize < 0 || flushInterval < 0)
+			throw new IllegalArgumentException("negative batch size or flush interval");
+
+		this.batchSize = batchSize;
+		this.flushInterval = flushInterval;
+	}
+
+	/**
+	 * Enables or disables Nagle's algorithm (TCP_NODELAY) on the socket. Takes
+	 * effect immediately if connected, and for the next connections.
+	 * 
+	 * @param tcpNoDelay
+	 *            true to send small segments without delay.
+	 * @exception SocketException
+	 *                if the option cannot be set on the current socket.
+	 */
+	final public void setTcpNoDelay(boolean tcpNoDelay) throws SocketException {
+		this.tcpNoDelay = tcpNoDelay;
+
+		Socket socket = clientSocket;
+		if (socket != null)
+			socket.setTcpNoDelay(tcpNoDelay);
+	}
+
+	/**
+	 * @return true if Nagle's algorithm is disabled.
+	 */
+	final public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	/**
+	 * Sets how the client makes sure a framed connection is alive. When there
+	 * has been no traffic in either direction for the interval, the client
+	 * sends a heartbeat, which the server answers; if nothing at all comes
+	 * from the server for the timeout, the connection is closed and
+	 * connectionException is called with a
+	 * <code>SocketTimeoutException</code>. This detects servers that
+	 * vanished without closing the connection, and lets the server detect
+	 * clients that did. The checks run on a timer wheel shared by all the
+	 * clients of the process. The default is a heartbeat every 15 seconds and
+	 * a timeout of 45 seconds. The change only takes effect at the time of
+	 * the next call to openConnection().
+	 * 
+	 * @param interval
+	 *            the interval in milliseconds, or 0 to turn heartbeats off.
+	 * @param timeout
+	 *            the timeout in milliseconds, longer than the interval.
+	 */
+	final public void setHeartbeat(long interval, long timeout) {
+		if (interval < 0 || (interval > 0 && timeout <= interval))
+			throw new IllegalArgumentException("the heartbeat timeout must be longer than the interval");
+
+		this.heartbeatInterval = interval;
+		this.heartbeatTimeout = timeout;
+	}
+
+	/**
+	 * @return the heartbeat interval in milliseconds, or 0 if heartbeats are
+	 *         off.
+	 */
+	final public long getHeartbeatInterval() {
+		return heartbeatInterval;
+	}
+
+	/**
+	 * @return the time in milliseconds after which a silent server is
+	 *         considered gone.
+	 */
+	final public long getHeartbeatTimeout() {
+		return heartbeatTimeout;
+	}
+
+	/**
+	 * Makes the client reopen the connection by itself when it is lost,
+	 * rather than only calling connectionException. Attempts are spaced by a
+	 * delay that doubles after each failure up to a maximum, and each delay
+	 * is drawn at random up to its current value, so that clients that lost
+	 * their server together do not come back all at once. Once reopened, the
+	 * reconnected() hook is called, for instance to log in again, and then
+	 * the messages sent meanwhile are sent, up to the given number; sending
+	 * more throws an IOException. closeConnection() stops the attempts.
+	 * 
+	 * @param initialDelay
+	 *            the longest delay before the first attempt, in
+	 *            milliseconds, or 0 to never reconnect (the default).
+	 * @param maxDelay
+	 *            the longest delay between attempts, in milliseconds.
+	 * @param bufferSize
+	 *            the maximum number of messages kept while reconnecting.
+	 */
+	final public void setReconnect(long initialDelay, long maxDelay, int bufferSize) {
+		if (initialDelay < 0 || maxDelay < initialDelay || bufferSize < 0)
+			throw new IllegalArgumentException("invalid reconnect delays or buffer size");
+
+		this.reconnectDelay = initialDelay;
+		this.maxReconnectDelay = maxDelay;
+		this.reconnectBufferSize = bufferSize;
+	}
+
+	/**
+	 * @return true if a lost connection is being reopened.
+	 */
+	final public boolean isReconnecting() {
+		return reconnecting;
+	}
+
+	/**
+	 * @return true if the reader of the next connection runs on a virtual
+	 *         thread.
+	 */
+	final public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Selects whether the thread reading messages from the server is a
+	 * virtual thread rather than a platform thread. Useful for processes that
+	 * hold many connections at once. Platform threads are used anyway if the
+	 * JVM does not support virtual threads. The change only takes effect at
+	 * the time of the next call to openConnection().
+	 * 
+	 * @param virtualThreads
+	 *            true to read on a virtual thread.
+	 */
+	final public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
 	/**
 	 * returns the client's description.
 	 * 
@@ -232,6 +688,9 @@ public abstract class AbstractClient implements Runnable {
 		// The message from the server
 		Object msg;
 
+		// Set if the connection is lost and must be reopened
+		boolean reconnect = false;
+
 		// Loop waiting for data
 
 		try {
@@ -239,7 +698,27 @@ public abstract class AbstractClient implements Runnable {
 				// Get data from Server and send it to the handler
 				// The thread waits indefinitely at the following
 				// statement until something is received from the server
-				msg = input.readObject();
+				if (frameInput != null) {
+					int length = frameInput.readInt();
+					lastRead = System.nanoTime();
+					if (length == Frames.HEARTBEAT_LENGTH)
+						continue; // the answer to a heartbeat
+					if (length == Frames.BATCH_LENGTH) {
+						// Broadcasts coalesced by the server, handled one by one
+						int count = frameInput.readInt();
+						Frames.checkBatchCount(count);
+						for (int i = 0; i < count && !readyToStop; i++)
+							handleMessageFromServer(Frames.readFrame(frameInput, codec));
+						continue;
+					}
+
+					Frames.checkLength(length);
+					byte[] payload = new byte[length];
+					frameInput.readFully(payload);
+					msg = codec.decode(payload, 0, length);
+				} else {
+					msg = input.readObject();
+				}
 
 				// Concrete subclasses do what they want with the
 				// msg by implementing the following method
@@ -252,11 +731,18 @@ public abstract class AbstractClient implements Runnable {
 				} catch (Exception ex) {
 				}
 
-				connectionException(exception);
+				reconnect = startReconnecting();
+				if (heartbeatExpired)
+					connectionException(new SocketTimeoutException("no heartbeat from the server"));
+				else
+					connectionException(exception);
 			}
 		} finally {
 			clientReader = null;
 		}
+
+		if (reconnect)
+			reconnect();
 	}
 
 	// METHODS DESIGNED TO BE OVERRIDDEN BY CONCRETE SUBCLASSES ---------
@@ -289,6 +775,18 @@ public abstract class AbstractClient implements Runnable {
 	protected void connectionEstablished() {
 	}
 
+	/**
+	 * Hook method called when a lost connection has been reopened, before
+	 * the messages sent meanwhile are sent. Messages sent from this method
+	 * go first, which is where a client logs in again. Other threads
+	 * sending messages wait until this method returns. The default
+	 * implementation does nothing.
+	 * 
+	 * @see #setReconnect(long, long, int)
+	 */
+	protected void reconnected() {
+	}
+
 	/**
 	 * Handles a message sent from the server to this client. This MUST be
 	 * implemented by subclasses, who should respond to messages.
@@ -300,6 +798,238 @@ public abstract class AbstractClient implements Runnable {
 
 	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+	/**
+	 * Writes a message to the server. Called with the write lock held.
+	 */
+	private void write(Object msg) throws IOException {
+		if (clientSocket == null || (output == null && frameOutput == null))
+			throw new SocketException("socket does not exist");
+
+		if (frameOutput != null) {
+			frameOutput.write(Frames.encode(msg, codec));
+			lastSent = System.nanoTime();
+		} else {
+			output.writeObject(msg);
+			resetPolicy.written(output);
+		}
+
+		if (batchSize > 0 && flushInterval > 0 && !flushScheduled) {
+			flushScheduled = true;
+			scheduleFlush();
+		}
+	}
+
+	/**
+	 * Decides to reopen the connection after it was lost, if the client is
+	 * set to.
+	 * 
+	 * @return true if the calling thread must reopen the connection; false
+	 *         if reconnecting is off or another thread is already doing it.
+	 */
+	private boolean startReconnecting() {
+		synchronized (writeLock) {
+			if (reconnectDelay <= 0 || reconnecting)
+				return false;
+			reconnecting = true;
+			return true;
+		}
+	}
+
+	/**
+	 * Reopens a lost connection, retrying with jittered exponential backoff
+	 * until it succeeds or closeConnection() is called. Runs on the thread
+	 * that read from the lost connection.
+	 */
+	private void reconnect() {
+		reconnector = Thread.currentThread();
+		long delay = reconnectDelay;
+		try {
+			while (reconnecting) {
+				Thread.sleep(ThreadLocalRandom.current().nextLong(delay + 1));
+				delay = Math.min(maxReconnectDelay, delay * 2);
+				if (!reconnecting)
+					break;
+
+				try {
+					openConnection();
+				} catch (IOException ex) {
+					continue;
+				}
+
+				synchronized (writeLock) {
+					if (!reconnecting) {
+						// closeConnection() was called meanwhile
+						readyToStop = true;
+						try {
+							closeAll();
+						} catch (IOException ex) {
+						}
+						break;
+					}
+
+					try {
+						reconnected();
+						while (!pending.isEmpty()) {
+							write(pending.peek());
+							pending.poll();
+						}
+						flush();
+					} catch (IOException ex) {
+						// Lost again; the reader of the new connection
+						// leaves it to this thread
+						try {
+							closeAll();
+						} catch (IOException exc) {
+						}
+						continue;
+					}
+					reconnecting = false;
+				}
+			}
+		} catch (InterruptedException ex) {
+			// closeConnection() was called
+		} finally {
+			reconnector = null;
+		}
+	}
+
+	/**
+	 * Returns the stream writing to the socket, buffered if batching is on.
+	 */
+	private OutputStream socketOutput() throws IOException {
+		OutputStream out = clientSocket.getOutputStream();
+		return batchSize > 0 ? new BufferedOutputStream(out, batchSize) : out;
+	}
+
+	/**
+	 * Schedules a flush of the batching buffer after the flush interval.
+	 * Called with the write lock held.
+	 */
+	private void scheduleFlush() {
+		flusher().schedule(new Runnable() {
+			public void run() {
+				synchronized (writeLock) {
+					flushScheduled = false;
+					try {
+						flush();
+					} catch (IOException ex) {
+						// The reader thread reports broken connections
+					}
+				}
+			}
+		}, flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns the thread flushing buffers and sending heartbeats, creating it
+	 * the first time.
+	 */
+	private static ScheduledExecutorService flusher() {
+		synchronized (AbstractClient.class) {
+			if (flusher == null) {
+				flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "OCSF client flusher");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			return flusher;
+		}
+	}
+
+	/**
+	 * Schedules the next heartbeat check on the shared timer wheel.
+	 */
+	private void scheduleHeartbeatCheck() {
+		heartbeatCheck = TimerWheel.shared().schedule(new Runnable() {
+			public void run() {
+				checkHeartbeat();
+			}
+		}, heartbeatInterval / 2, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sends a heartbeat if the connection has been idle for the interval, or
+	 * closes it if the server has been silent for the timeout. Runs on the
+	 * thread of the timer wheel, so the heartbeat, which waits for the write
+	 * lock and may block on the socket, is written by the flusher thread.
+	 */
+	private void checkHeartbeat() {
+		if (readyToStop || frameOutput == null)
+			return;
+
+		long now = System.nanoTime();
+		if (now - lastRead >= TimeUnit.MILLISECONDS.toNanos(heartbeatTimeout)) {
+			// The reader thread fails and reports the timeout
+			heartbeatExpired = true;
+			Socket socket = clientSocket;
+			try {
+				if (socket != null)
+					socket.close();
+			} catch (IOException ex) {
+			}
+			return;
+		}
+
+		long interval = TimeUnit.MILLISECONDS.toNanos(heartbeatInterval);
+		if ((now - lastSent >= interval || now - lastRead >= interval) && !heartbeatQueued) {
+			heartbeatQueued = true;
+			flusher().execute(new Runnable() {
+				public void run() {
+					sendHeartbeat();
+				}
+			});
+		}
+		scheduleHeartbeatCheck();
+	}
+
+	/**
+	 * Writes a heartbeat to the server. Runs on the flusher thread.
+	 */
+	private void sendHeartbeat() {
+		synchronized (writeLock) {
+			heartbeatQueued = false;
+			try {
+				if (frameOutput != null && !readyToStop) {
+					frameOutput.write(Frames.heartbeat());
+					frameOutput.flush();
+					lastSent = System.nanoTime();
+				}
+			} catch (IOException ex) {
+				// The reader thread reports broken connections
+			}
+		}
+	}
+
+	/**
+	 * Creates the frame streams and performs the framed protocol handshake,
+	 * which picks the codec of the connection.
+	 * 
+	 * @exception IOException
+	 *                if the server does not acknowledge the handshake or
+	 *                accepts none of the proposed codecs.
+	 */
+	private void openFrameStreams() throws IOException {
+		frameOutput = socketOutput();
+		frameInput = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+
+		frameOutput.write(Frames.clientHandshake(codecs, true));
+		frameOutput.flush();
+
+		if (frameInput.readInt() != Frames.MAGIC)
+			throw new StreamCorruptedException("server does not support the framed protocol");
+
+		int id = frameInput.readUnsignedByte();
+		for (int i = 0; i < codecs.length && codec == null; i++) {
+			if (codecs[i].getId() == id)
+				codec = codecs[i];
+		}
+		if (codec == null)
+			throw new IOException("server accepts none of the proposed codecs");
+	}
+
 	/**
 	 * Closes all aspects of the connection to the server.
 	 * 
@@ -307,6 +1037,10 @@ public abstract class AbstractClient implements Runnable {
 	 *                if an I/O error occurs when closing.
 	 */
 	private void closeAll() throws IOException {
+		TimerWheel.Timeout check = heartbeatCheck;
+		if (check != null)
+			check.cancel();
+
 		try {
 			// Close the socket
 			if (clientSocket != null)
@@ -326,6 +1060,9 @@ public abstract class AbstractClient implements Runnable {
 			// when they are garbage collected.
 			output = null;
 			input = null;
+			frameOutput = null;
+			frameInput = null;
+			codec = null;
 			clientSocket = null;
 		}
 	}
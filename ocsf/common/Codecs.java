@@ -0,0 +1,72 @@
+package ocsf.common;
+
+/**
+ * The codecs provided by the framework. Custom codecs need no registration:
+ * a codec can be used on a connection as soon as it is given to
+ * <code>setCodecs</code> on both sides.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.MessageCodec
+ */
+public final class Codecs {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The UTF-8 text codec, preferred by default.
+	 */
+	public static final MessageCodec		TEXT			= new TextCodec();
+
+	/**
+	 * The Java serialization codec.
+	 */
+	public static final MessageCodec		SERIALIZATION	= new SerializationCodec();
+
+	/**
+	 * The codecs proposed by clients and accepted by servers unless told
+	 * otherwise, in order of preference.
+	 */
+	private static final MessageCodec[]	DEFAULTS		= { TEXT, SERIALIZATION };
+
+	/**
+	 * The largest id of a codec, the ids being sent as single bytes.
+	 */
+	public static final int				MAX_ID			= 127;
+
+	// CONSTRUCTORS *****************************************************
+
+	private Codecs() {
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Checks that codecs can be negotiated: each has an id between 1 and
+	 * MAX_ID, and no two have the same id.
+	 *
+	 * @param codecs
+	 *            the codecs.
+	 * @exception IllegalArgumentException
+	 *                if an id is out of range or used twice.
+	 */
+	public static void checkIds(MessageCodec[] codecs) {
+		boolean[] used = new boolean[MAX_ID + 1];
+		for (int i = 0; i < codecs.length; i++) {
+			int id = codecs[i].getId();
+			if (id < 1 || id > MAX_ID)
+				throw new IllegalArgumentException("codec id out of range: " + id);
+			if (used[id])
+				throw new IllegalArgumentException("codec id used twice: " + id);
+			used[id] = true;
+		}
+	}
+
+	/**
+	 * @return the default codecs, in order of preference.
+	 */
+	public static MessageCodec[] defaults() {
+		return DEFAULTS.clone();
+	}
+}
+// End of Codecs class
@@ -0,0 +1,295 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * Helpers for the framed wire protocol shared by <code>AbstractClient</code>
+ * and <code>ConnectionToClient</code>. A framed connection starts with a
+ * handshake choosing the codec of the connection:
+ * <ul>
+ * <li>the client sends the 4 byte {@link #MAGIC} value, the number of codecs
+ * it proposes and their ids, one byte each, in order of preference;</li>
+ * <li>the server answers with {@link #MAGIC} and the id of the codec it
+ * picked, or 0 if it supports none of them.</li>
+ * </ul>
+ * After that, every message travels as a 4 byte big-endian length followed
+ * by that many bytes of payload produced by the codec. A length of
+ * {@link #HEARTBEAT_LENGTH}, with no payload, is a heartbeat: it only tells
+ * the other side that the connection is alive. A length of
+ * {@link #BATCH_LENGTH} starts a batch: a 4 byte count followed by that many
+ * ordinary frames, sent by the server to clients that proposed
+ * {@link #BATCH_CAPABILITY} among their codecs.
+ * <p>
+ * Because each frame can be decoded on its own, a framed connection can be
+ * read without blocking a thread on the socket, which is what the selector
+ * based server engine relies on.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.MessageCodec
+ */
+public final class Frames {
+	// CONSTANTS ********************************************************
+
+	/**
+	 * The handshake sent first by both sides of a framed connection ("OCSF").
+	 * A legacy object stream starts with 0xACED instead, so the server can tell
+	 * the two protocols apart from the first bytes it reads.
+	 */
+	public static final int	MAGIC				= 0x4F435346;
+
+	/**
+	 * Number of bytes in the length prefix of a frame.
+	 */
+	public static final int	HEADER_LENGTH		= 4;
+
+	/**
+	 * Number of bytes in the answer of the server to the handshake.
+	 */
+	public static final int	REPLY_LENGTH		= HEADER_LENGTH + 1;
+
+	/**
+	 * The largest payload accepted in a single frame. Anything bigger is
+	 * treated as a protocol error rather than allocated blindly.
+	 */
+	public static final int	MAX_FRAME_LENGTH	= 16 * 1024 * 1024;
+
+	/**
+	 * The length prefix of a heartbeat. Not 0, which is the length of an
+	 * empty string with the text codec. A client sends heartbeats when the
+	 * connection is idle and the server answers each of them; the server
+	 * never sends one first, so peers that predate heartbeats never get any.
+	 */
+	public static final int	HEARTBEAT_LENGTH	= -1;
+
+	/**
+	 * The length prefix of a batch of frames, coalesced by the server so that
+	 * a burst of broadcasts takes one write per client.
+	 */
+	public static final int	BATCH_LENGTH		= -2;
+
+	/**
+	 * The most frames in a batch.
+	 */
+	public static final int	MAX_BATCH_COUNT		= 65536;
+
+	/**
+	 * Proposed by a client along with its codecs to tell the server that it
+	 * unpacks batches. Out of the range of codec ids, so servers that predate
+	 * batches ignore it and never send any.
+	 */
+	public static final int	BATCH_CAPABILITY	= 0xFF;
+
+	// CONSTRUCTORS *****************************************************
+
+	private Frames() {
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * @return a new heartbeat frame.
+	 */
+	public static byte[] heartbeat() {
+		byte[] frame = new byte[HEADER_LENGTH];
+		putInt(frame, 0, HEARTBEAT_LENGTH);
+		return frame;
+	}
+
+	/**
+	 * Encodes a message into a complete frame, length prefix included.
+	 *
+	 * @param msg
+	 *            the message to encode.
+	 * @param codec
+	 *            the codec of the connection.
+	 * @return the bytes of the frame.
+	 * @exception IOException
+	 *                if the codec cannot encode the message.
+	 */
+	public static byte[] encode(Object msg, MessageCodec codec) throws IOException {
+		byte[] payload = codec.encode(msg);
+		checkLength(payload.length);
+
+		byte[] frame = new byte[HEADER_LENGTH + payload.length];
+		putInt(frame, 0, payload.length);
+		System.arraycopy(payload, 0, frame, HEADER_LENGTH, payload.length);
+		return frame;
+	}
+
+	/**
+	 * Builds a batch from complete frames.
+	 *
+	 * @param frames
+	 *            the frames, length prefix included.
+	 * @param count
+	 *            the number of frames.
+	 * @return the bytes of the batch.
+	 */
+	public static byte[] batch(byte[][] frames, int count) {
+		int length = 2 * HEADER_LENGTH;
+		for (int i = 0; i < count; i++)
+			length += frames[i].length;
+
+		byte[] batch = new byte[length];
+		putInt(batch, 0, BATCH_LENGTH);
+		putInt(batch, HEADER_LENGTH, count);
+		int off = 2 * HEADER_LENGTH;
+		for (int i = 0; i < count; i++) {
+			System.arraycopy(frames[i], 0, batch, off, frames[i].length);
+			off += frames[i].length;
+		}
+		return batch;
+	}
+
+	/**
+	 * Reads one frame from a blocking stream and decodes it.
+	 *
+	 * @param in
+	 *            the stream to read from.
+	 * @param codec
+	 *            the codec of the connection.
+	 * @return the decoded message.
+	 */
+	public static Object readFrame(DataInputStream in, MessageCodec codec) throws IOException, ClassNotFoundException {
+		int length = in.readInt();
+		checkLength(length);
+
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return codec.decode(payload, 0, length);
+	}
+
+	/**
+	 * Builds the handshake sent by a client that does not unpack batches.
+	 *
+	 * @param codecs
+	 *            the codecs proposed, in order of preference.
+	 * @return the bytes of the handshake.
+	 */
+	public static byte[] clientHandshake(MessageCodec[] codecs) {
+		return clientHandshake(codecs, false);
+	}
+
+	/**
+	 * Builds the handshake sent by a client.
+	 *
+	 * @param codecs
+	 *            the codecs proposed, in order of preference; at most 254 if
+	 *            batches are accepted.
+	 * @param batches
+	 *            true if the client unpacks batches.
+	 * @return the bytes of the handshake.
+	 */
+	public static byte[] clientHandshake(MessageCodec[] codecs, boolean batches) {
+		int count = codecs.length + (batches ? 1 : 0);
+		byte[] handshake = new byte[HEADER_LENGTH + 1 + count];
+		putInt(handshake, 0, MAGIC);
+		handshake[HEADER_LENGTH] = (byte) count;
+		for (int i = 0; i < codecs.length; i++)
+			handshake[HEADER_LENGTH + 1 + i] = (byte) codecs[i].getId();
+		if (batches)
+			handshake[HEADER_LENGTH + 1 + codecs.length] = (byte) BATCH_CAPABILITY;
+		return handshake;
+	}
+
+	/**
+	 * Tells whether a client proposed {@link #BATCH_CAPABILITY}.
+	 *
+	 * @param proposed
+	 *            the buffer holding the ids proposed by the client.
+	 * @param off
+	 *            offset of the first id.
+	 * @param count
+	 *            number of ids.
+	 * @return true if the client unpacks batches.
+	 */
+	public static boolean acceptsBatches(byte[] proposed, int off, int count) {
+		for (int i = 0; i < count; i++) {
+			if ((proposed[off + i] & 0xFF) == BATCH_CAPABILITY)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Picks the codec of a connection: the first codec proposed by the client
+	 * that the server supports.
+	 *
+	 * @param proposed
+	 *            the buffer holding the ids proposed by the client.
+	 * @param off
+	 *            offset of the first id.
+	 * @param count
+	 *            number of ids.
+	 * @param supported
+	 *            the codecs supported by the server.
+	 * @return the codec, or null if there is none in common.
+	 */
+	public static MessageCodec chooseCodec(byte[] proposed, int off, int count, MessageCodec[] supported) {
+		for (int i = 0; i < count; i++) {
+			for (int j = 0; j < supported.length; j++) {
+				if (supported[j].getId() == proposed[off + i])
+					return supported[j];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Builds the answer of the server to the handshake.
+	 *
+	 * @param codec
+	 *            the codec picked, or null if there is none in common.
+	 * @return the bytes of the answer.
+	 */
+	public static byte[] serverHandshake(MessageCodec codec) {
+		byte[] handshake = new byte[REPLY_LENGTH];
+		putInt(handshake, 0, MAGIC);
+		handshake[HEADER_LENGTH] = (byte) (codec == null ? 0 : codec.getId());
+		return handshake;
+	}
+
+	/**
+	 * Validates a frame length read from the wire.
+	 *
+	 * @exception IOException
+	 *                if the length is negative or too large.
+	 */
+	public static void checkLength(int length) throws IOException {
+		if (length < 0 || length > MAX_FRAME_LENGTH)
+			throw new StreamCorruptedException("invalid frame length " + length);
+	}
+
+	/**
+	 * Validates a batch count read from the wire.
+	 *
+	 * @exception IOException
+	 *                if the count is not positive or too large.
+	 */
+	public static void checkBatchCount(int count) throws IOException {
+		if (count <= 0 || count > MAX_BATCH_COUNT)
+			throw new StreamCorruptedException("invalid batch count " + count);
+	}
+
+	/**
+	 * Writes <code>value</code> big-endian into <code>buf</code> at
+	 * <code>off</code>.
+	 */
+	public static void putInt(byte[] buf, int off, int value) {
+		buf[off] = (byte) (value >>> 24);
+		buf[off + 1] = (byte) (value >>> 16);
+		buf[off + 2] = (byte) (value >>> 8);
+		buf[off + 3] = (byte) value;
+	}
+
+	/**
+	 * Reads a big-endian int from <code>buf</code> at <code>off</code>.
+	 */
+	public static int getInt(byte[] buf, int off) {
+		return ((buf[off] & 0xFF) << 24) | ((buf[off + 1] & 0xFF) << 16) | ((buf[off + 2] & 0xFF) << 8)
+				| (buf[off + 3] & 0xFF);
+	}
+}
+// End of Frames class
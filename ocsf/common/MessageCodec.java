@@ -0,0 +1,52 @@
+package ocsf.common;
+
+import java.io.IOException;
+
+/**
+ * Turns messages into the payload of a frame and back. The codec used by a
+ * framed connection is negotiated when the connection is opened: the client
+ * lists the codecs it can use, in order of preference, and the server picks
+ * the first one it also supports.
+ * <p>
+ * Implementations must be thread safe, since a single instance is shared by
+ * all the connections that use it. A custom codec is used by giving it to
+ * <code>setCodecs</code> on both the client and the server.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.Codecs
+ */
+public interface MessageCodec {
+	/**
+	 * Returns the id identifying the codec during the handshake. Ids 1 to 15
+	 * are reserved for the codecs of the framework.
+	 *
+	 * @return an id between 1 and 127.
+	 */
+	public abstract int getId();
+
+	/**
+	 * Encodes a message.
+	 *
+	 * @param msg
+	 *            the message to encode.
+	 * @return the payload of the frame.
+	 * @exception IOException
+	 *                if the codec cannot encode the message.
+	 */
+	public abstract byte[] encode(Object msg) throws IOException;
+
+	/**
+	 * Decodes the payload of a frame.
+	 *
+	 * @param buf
+	 *            the buffer containing the payload.
+	 * @param off
+	 *            offset of the first payload byte.
+	 * @param len
+	 *            number of payload bytes.
+	 * @return the decoded message.
+	 */
+	public abstract Object decode(byte[] buf, int off, int len) throws IOException, ClassNotFoundException;
+}
@@ -0,0 +1,44 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * The compatibility codec: every payload is a self-contained Java
+ * serialization stream holding one object, so any serializable message can
+ * be sent, as with the legacy object streams.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class SerializationCodec implements MessageCodec {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The id of the codec.
+	 */
+	public static final int	ID	= 2;
+
+	// INSTANCE METHODS *************************************************
+
+	public int getId() {
+		return ID;
+	}
+
+	public byte[] encode(Object msg) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(msg);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	public Object decode(byte[] buf, int off, int len) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(buf, off, len));
+		return in.readObject();
+	}
+
+	public String toString() {
+		return "serialization";
+	}
+}
+// End of SerializationCodec class
@@ -0,0 +1,122 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * Decides when a legacy object stream must be reset. An
+ * <code>ObjectOutputStream</code> remembers every object written to it, and
+ * the <code>ObjectInputStream</code> at the other end every object read, so
+ * that repeated objects can be sent as back references. On a connection that
+ * lives for days this amounts to a memory leak on both sides. Resetting the
+ * stream every so many messages or bytes clears both tables.
+ * <p>
+ * Framed connections do not need this: each frame is encoded on its own.
+ * <p>
+ * An instance tracks a single stream and must be used while holding the lock
+ * that serializes writes to it.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class StreamResetPolicy {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Default number of messages after which a stream is reset.
+	 */
+	public static final int		DEFAULT_MESSAGES	= 1000;
+
+	/**
+	 * Default number of bytes after which a stream is reset.
+	 */
+	public static final long	DEFAULT_BYTES		= 1024 * 1024;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The number of messages after which the stream is reset, or 0.
+	 */
+	private final int			maxMessages;
+
+	/**
+	 * The number of bytes after which the stream is reset, or 0.
+	 */
+	private final long			maxBytes;
+
+	/**
+	 * Messages written since the last reset.
+	 */
+	private int					messages;
+
+	/**
+	 * Bytes written since the last reset.
+	 */
+	private long				bytes;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a policy. A limit of 0 disables the corresponding trigger;
+	 * with both at 0 the stream is never reset automatically.
+	 *
+	 * @param maxMessages
+	 *            the number of messages after which the stream is reset.
+	 * @param maxBytes
+	 *            the number of bytes after which the stream is reset.
+	 */
+	public StreamResetPolicy(int maxMessages, long maxBytes) {
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Wraps the stream the object stream writes to, so that the bytes
+	 * written can be counted.
+	 *
+	 * @param out
+	 *            the underlying stream.
+	 * @return the stream to create the object stream on.
+	 */
+	public OutputStream track(OutputStream out) {
+		return new FilterOutputStream(out) {
+			public void write(int b) throws IOException {
+				out.write(b);
+				bytes++;
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				bytes += len;
+			}
+		};
+	}
+
+	/**
+	 * Called after each message written, resets the stream if a limit is
+	 * reached.
+	 *
+	 * @param output
+	 *            the object stream.
+	 * @exception IOException
+	 *                if the reset fails.
+	 */
+	public void written(ObjectOutputStream output) throws IOException {
+		messages++;
+		if ((maxMessages > 0 && messages >= maxMessages) || (maxBytes > 0 && bytes >= maxBytes)) {
+			output.reset();
+			wasReset();
+		}
+	}
+
+	/**
+	 * Called when the stream is reset explicitly, so that counting starts
+	 * over.
+	 */
+	public void wasReset() {
+		messages = 0;
+		bytes = 0;
+	}
+}
+// End of StreamResetPolicy class
@@ -0,0 +1,48 @@
+package ocsf.common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The default codec: a message is a <code>String</code> and its payload is
+ * the UTF-8 encoding of the string, nothing more. Compared to Java
+ * serialization there is no stream header, no type information and no
+ * handle table, which is all a chat line needs.
+ * <p>
+ * Only strings can be sent with this codec; applications exchanging other
+ * objects must ask for {@link SerializationCodec} instead.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class TextCodec implements MessageCodec {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The id of the codec.
+	 */
+	public static final int	ID	= 1;
+
+	// INSTANCE METHODS *************************************************
+
+	public int getId() {
+		return ID;
+	}
+
+	public byte[] encode(Object msg) throws IOException {
+		if (!(msg instanceof String))
+			throw new NotSerializableException("the text codec only carries strings, not "
+					+ (msg == null ? "null" : msg.getClass().getName()));
+
+		return ((String) msg).getBytes(StandardCharsets.UTF_8);
+	}
+
+	public Object decode(byte[] buf, int off, int len) {
+		return new String(buf, off, len, StandardCharsets.UTF_8);
+	}
+
+	public String toString() {
+		return "text";
+	}
+}
+// End of TextCodec class
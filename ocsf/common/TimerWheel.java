@@ -0,0 +1,289 @@
+package ocsf.common;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timer wheel: a single thread running tasks after a delay, for
+ * very many tasks that are mostly cancelled before they are due, such as
+ * handshake deadlines and heartbeat checks. Scheduling and cancelling take
+ * constant time and never lock, whatever the number of pending tasks.
+ * <p>
+ * Time is cut into ticks; the wheel is a ring of buckets, one per tick, and a
+ * task goes into the bucket of the tick it is due, with the number of turns
+ * of the wheel left before then. At each tick the thread runs the due tasks
+ * of one bucket. Tasks thus run up to a tick late, which is fine for
+ * timeouts counted in seconds.
+ * <p>
+ * Tasks run on the thread of the wheel, one after the other, so they must be
+ * short and must not block for long.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class TimerWheel {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The wheel shared by the servers and clients of the process.
+	 */
+	private static TimerWheel	shared;
+
+	/**
+	 * States of a timeout.
+	 */
+	private static final int	PENDING		= 0, CANCELLED = 1, EXPIRED = 2;
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A task scheduled on the wheel.
+	 */
+	public static final class Timeout {
+		private final TimerWheel	wheel;
+
+		private final Runnable		task;
+
+		/**
+		 * When the task is due, in nanoseconds since the wheel started.
+		 */
+		private final long			deadline;
+
+		private final AtomicInteger	state	= new AtomicInteger(PENDING);
+
+		/**
+		 * Turns of the wheel left before the task is due. Only used by the
+		 * thread of the wheel, as are the links below.
+		 */
+		private long				rounds;
+
+		private int					bucket	= -1;
+
+		private Timeout				prev, next;
+
+		private Timeout(TimerWheel wheel, Runnable task, long deadline) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the task if it has not run yet.
+		 *
+		 * @return true if the task will not run because of this call.
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(PENDING, CANCELLED))
+				return false;
+
+			// Unlinked by the thread of the wheel, so that it is not
+			// kept until it is due
+			wheel.cancelled.add(this);
+			return true;
+		}
+
+		/**
+		 * @return true if the task was cancelled.
+		 */
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+	}
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The length of a tick, in nanoseconds.
+	 */
+	private final long								tickNanos;
+
+	/**
+	 * The first timeout of each bucket.
+	 */
+	private final Timeout[]							buckets;
+
+	/**
+	 * buckets.length - 1; the number of buckets is a power of two.
+	 */
+	private final int								mask;
+
+	/**
+	 * Timeouts scheduled since the last tick.
+	 */
+	private final ConcurrentLinkedQueue<Timeout>	added		= new ConcurrentLinkedQueue<Timeout>();
+
+	/**
+	 * Timeouts cancelled since the last tick.
+	 */
+	private final ConcurrentLinkedQueue<Timeout>	cancelled	= new ConcurrentLinkedQueue<Timeout>();
+
+	/**
+	 * When the wheel started, from <code>System.nanoTime()</code>.
+	 */
+	private final long								start;
+
+	/**
+	 * The tick the thread of the wheel works on.
+	 */
+	private long									tick;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a wheel and starts its thread, a daemon thread.
+	 *
+	 * @param name
+	 *            the name of the thread.
+	 * @param tick
+	 *            the length of a tick, in milliseconds.
+	 * @param wheelSize
+	 *            the number of buckets, rounded up to a power of two. Delays
+	 *            longer than tick * wheelSize take more than a turn.
+	 */
+	public TimerWheel(String name, long tick, int wheelSize) {
+		if (tick <= 0 || wheelSize <= 0)
+			throw new IllegalArgumentException("tick and wheel size must be positive");
+
+		int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tick);
+		this.buckets = new Timeout[size];
+		this.mask = size - 1;
+		this.start = System.nanoTime();
+
+		Thread worker = new Thread(name) {
+			public void run() {
+				turn();
+			}
+		};
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Returns the wheel shared by the servers and clients of the process, with
+	 * ticks of 100 ms and 512 buckets.
+	 *
+	 * @return the shared wheel.
+	 */
+	public static synchronized TimerWheel shared() {
+		if (shared == null)
+			shared = new TimerWheel("OCSF timer wheel", 100, 512);
+		return shared;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Schedules a task.
+	 *
+	 * @param task
+	 *            the task, run on the thread of the wheel.
+	 * @param delay
+	 *            the delay before the task runs.
+	 * @param unit
+	 *            the unit of the delay.
+	 * @return the timeout, to cancel the task.
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(this, task, System.nanoTime() - start + unit.toNanos(Math.max(0, delay)));
+		added.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * The loop of the thread of the wheel: waits for the end of each tick,
+	 * then runs the tasks due.
+	 */
+	private void turn() {
+		while (true) {
+			long sleep = (tick + 1) * tickNanos - (System.nanoTime() - start);
+			if (sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException ex) {
+					// Not expected for a daemon thread; keep turning
+				}
+				continue;
+			}
+
+			removeCancelled();
+			addScheduled();
+			expire(buckets[(int) tick & mask]);
+			tick++;
+		}
+	}
+
+	/**
+	 * Unlinks the timeouts cancelled since the last tick.
+	 */
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null) {
+			if (timeout.bucket >= 0)
+				unlink(timeout);
+		}
+	}
+
+	/**
+	 * Puts the timeouts scheduled since the last tick in their bucket.
+	 */
+	private void addScheduled() {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			if (timeout.state.get() != PENDING)
+				continue;
+
+			// A task already due goes into the bucket of this tick
+			long due = Math.max(timeout.deadline / tickNanos, tick);
+			timeout.rounds = (due - tick) / buckets.length;
+			timeout.bucket = (int) due & mask;
+
+			Timeout head = buckets[timeout.bucket];
+			timeout.next = head;
+			if (head != null)
+				head.prev = timeout;
+			buckets[timeout.bucket] = timeout;
+		}
+	}
+
+	/**
+	 * Runs the tasks of a bucket that are due this turn.
+	 */
+	private void expire(Timeout timeout) {
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.rounds > 0) {
+				timeout.rounds--;
+			} else {
+				unlink(timeout);
+				if (timeout.state.compareAndSet(PENDING, EXPIRED)) {
+					try {
+						timeout.task.run();
+					} catch (Throwable ex) {
+						// A failing task must not stop the wheel
+					}
+				}
+			}
+			timeout = next;
+		}
+	}
+
+	/**
+	 * Removes a timeout from its bucket.
+	 */
+	private void unlink(Timeout timeout) {
+		if (timeout.prev != null)
+			timeout.prev.next = timeout.next;
+		else
+			buckets[timeout.bucket] = timeout.next;
+		if (timeout.next != null)
+			timeout.next.prev = timeout.prev;
+
+		timeout.prev = timeout.next = null;
+		timeout.bucket = -1;
+	}
+}
+// End of TimerWheel class
@@ -0,0 +1,95 @@
+package ocsf.common;
+
+import java.lang.reflect.*;
+
+/**
+ * Starts tasks on virtual threads when the running JVM provides them. The
+ * framework is compiled against older Java versions, so the
+ * <code>Thread.ofVirtual()</code> API is looked up reflectively once and
+ * platform threads are used when it is missing.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class VirtualThreads {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * <code>Thread.ofVirtual()</code>, or null if virtual threads are not
+	 * available.
+	 */
+	private static final Method	OF_VIRTUAL;
+
+	/**
+	 * <code>Thread.Builder.name(String)</code>.
+	 */
+	private static final Method	NAME;
+
+	/**
+	 * <code>Thread.Builder.start(Runnable)</code>.
+	 */
+	private static final Method	START;
+
+	static {
+		Method ofVirtual = null, name = null, start = null;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class);
+			start = builder.getMethod("start", Runnable.class);
+			ofVirtual.invoke(null); // fails when only available as a preview
+		} catch (Exception ex) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		START = start;
+	}
+
+	// CONSTRUCTORS *****************************************************
+
+	private VirtualThreads() {
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * @return true if the running JVM supports virtual threads.
+	 */
+	public static boolean isSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Starts a task on a new virtual thread, or on a new platform thread if
+	 * virtual threads are not supported.
+	 *
+	 * @param task
+	 *            the task to run.
+	 * @param name
+	 *            the name of the thread.
+	 * @return the started thread.
+	 */
+	public static Thread start(Runnable task, String name) {
+		if (OF_VIRTUAL != null) {
+			try {
+				Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+				return (Thread) START.invoke(builder, task);
+			} catch (InvocationTargetException ex) {
+				Throwable cause = ex.getCause();
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				if (cause instanceof Error)
+					throw (Error) cause;
+				throw new IllegalStateException(cause);
+			} catch (IllegalAccessException ex) {
+				// Fall back to a platform thread below
+			}
+		}
+
+		Thread thread = new Thread(task, name);
+		thread.start();
+		return thread;
+	}
+}
+// End of VirtualThreads class
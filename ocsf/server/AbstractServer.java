@@ -5,9 +5,19 @@
 package ocsf.server;
 
 import java.net.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.*;
 
+import ocsf.common.Codecs;
+import ocsf.common.Frames;
+import ocsf.common.MessageCodec;
+import ocsf.common.StreamResetPolicy;
+import ocsf.common.TimerWheel;
+import ocsf.common.VirtualThreads;
+
 /**
 * The <code> AbstractServer </code> class maintains a thread that waits
 * for connection attempts from clients. When a connection attempt occurs
@@ -16,6 +26,11 @@ import java.io.*;
 * server, the two programs can then exchange <code> Object </code>
 * instances.<p>
 *
+* Alternatively, the server can be put in selector mode, in which case
+* connections are serviced by a small pool of reactor threads instead
+* of one thread each. The hook methods are called the same way in both
+* modes.<p>
+*
 * Method <code> handleMessageFromClient </code> must be defined by
 * a concrete subclass. Several other hook methods may also be
 * overriden.<p>
@@ -34,12 +49,85 @@ import java.io.*;
 */
 public abstract class AbstractServer implements Runnable
 {
+  // CLASS VARIABLES ************************************************
+
+  /**
+   * Connection mode in which every client is serviced by a
+   * <code>ConnectionToClient</code> thread of its own. This is the
+   * default.
+   */
+  public static final int THREAD_PER_CONNECTION = 0;
+
+  /**
+   * Connection mode in which clients are serviced by a small pool of
+   * selector based reactor threads using non-blocking channels.
+   * Clients must use the framed protocol.
+   */
+  public static final int SELECTOR = 1;
+
+  /**
+   * Connection mode in which every client is serviced by a
+   * <code>ConnectionToClient</code> whose read loop runs on a virtual
+   * thread. Falls back to platform threads when the JVM has no
+   * virtual threads.
+   */
+  public static final int VIRTUAL_THREAD_PER_CONNECTION = 2;
+
+  /**
+   * Overflow policy dropping the oldest queued message to make room
+   * for the new one.
+   */
+  public static final int OVERFLOW_DROP_OLDEST = 0;
+
+  /**
+   * Overflow policy closing the connection of a client that does not
+   * keep up with its messages.
+   */
+  public static final int OVERFLOW_DISCONNECT = 1;
+
+  /**
+   * Overflow policy making the sender wait until the queue has room.
+   */
+  public static final int OVERFLOW_BLOCK = 2;
+
+  /**
+   * Rate limit policy holding back a client that sends too fast: its
+   * messages are handled late, and it stops being read meanwhile so
+   * that TCP slows it down.
+   */
+  public static final int RATE_LIMIT_THROTTLE = 0;
+
+  /**
+   * Rate limit policy discarding the messages a client sends too fast.
+   */
+  public static final int RATE_LIMIT_DROP = 1;
+
+  /**
+   * Rate limit policy closing the connection of a client that sends
+   * too fast.
+   */
+  public static final int RATE_LIMIT_DISCONNECT = 2;
+
+  /**
+   * How long closing the server waits for the broadcasts being
+   * batched to be sent, in milliseconds.
+   */
+  private static final long BATCHER_CLOSE_TIMEOUT = 1000;
+
   // INSTANCE VARIABLES *********************************************
 
   /**
-   * The server socket: listens for clients who want to connect.
+   * The server channel: listens for clients who want to connect.
+   * Non-blocking, so that the listening thread waits on a selector
+   * and wakes up as soon as the server stops listening.
+   */
+  private ServerSocketChannel serverChannel = null;
+
+  /**
+   * The selector the listening thread waits on for new connections,
+   * or null when the server is not listening.
    */
-  private ServerSocket serverSocket = null;
+  private volatile Selector acceptSelector;
 
   /**
    * The connection listener thread.
@@ -51,15 +139,6 @@ public abstract class AbstractServer implements Runnable
    */
   private int port;
 
-  /**
-   * The server timeout while for accepting connections.
-   * After timing out, the server will check to see if a command to
-   * stop the server has been issued; it not it will resume accepting
-   * connections.
-   * Set to half a second by default.
-   */
-  private int timeout = 500;
-
   /**
    * The maximum queue length; i.e. the maximum number of clients that
    * can be waiting to connect.
@@ -69,7 +148,9 @@ public abstract class AbstractServer implements Runnable
 
   /**
    * The thread group associated with client threads. Each member of the
-   * thread group is a <code> ConnectionToClient </code>.
+   * thread group is a <code> ConnectionToClient </code>. Only used to
+   * report uncaught exceptions; the connections themselves are tracked
+   * by the registry.
    */
   private ThreadGroup clientThreadGroup;
 
@@ -77,7 +158,167 @@ public abstract class AbstractServer implements Runnable
    * Indicates if the listening thread is ready to stop.  Set to
    * false by default.
    */
-  private boolean readyToStop = false;
+  private volatile boolean readyToStop = false;
+
+  /**
+   * The way connections are serviced. One of THREAD_PER_CONNECTION,
+   * SELECTOR or VIRTUAL_THREAD_PER_CONNECTION.
+   */
+  private int connectionMode = THREAD_PER_CONNECTION;
+
+  /**
+   * The number of reactor threads used in selector mode.
+   */
+  private int reactorCount =
+    Math.min(4, Runtime.getRuntime().availableProcessors());
+
+  /**
+   * The reactors servicing connections in selector mode.
+   */
+  private ConnectionReactor[] reactors;
+
+  /**
+   * Index of the reactor that will get the next connection.
+   */
+  private int nextReactor = 0;
+
+  /**
+   * Indicates if messages from all clients are handled one at a time
+   * under the server's lock, as in earlier versions of the framework.
+   * Set to false by default.
+   */
+  private volatile boolean serializedDispatch = false;
+
+  /**
+   * The maximum number of messages queued for each client, or 0 if
+   * messages are written directly by the sending thread. Connections
+   * serviced by reactors always queue; 0 leaves their queue unbounded.
+   * Set to 0 by default.
+   */
+  private int sendQueueCapacity = 0;
+
+  /**
+   * What happens when a message is sent to a client whose queue is
+   * full. Set to OVERFLOW_DISCONNECT by default.
+   */
+  private int overflowPolicy = OVERFLOW_DISCONNECT;
+
+  /**
+   * The number of messages each client may send per second, or 0 for
+   * no limit. Set to 0 by default.
+   */
+  private double messagesPerSecond = 0;
+
+  /**
+   * The number of messages a client may send at once.
+   */
+  private int messageBurst;
+
+  /**
+   * The number of bytes each client may send per second, or 0 for no
+   * limit. Set to 0 by default.
+   */
+  private double bytesPerSecond = 0;
+
+  /**
+   * The number of bytes a client may send at once.
+   */
+  private int byteBurst;
+
+  /**
+   * What happens to a client that sends too fast.
+   * Set to RATE_LIMIT_THROTTLE by default.
+   */
+  private int rateLimitPolicy = RATE_LIMIT_THROTTLE;
+
+  /**
+   * Coalesces the broadcasts, or null if each broadcast is sent on
+   * its own or the server is closed. Null by default.
+   */
+  private volatile BroadcastBatcher batcher;
+
+  /**
+   * How long the first broadcast of a batch may wait, in
+   * milliseconds, or 0 if broadcasts are not batched. Kept to start
+   * a new batcher when the server listens again after being closed.
+   */
+  private long batchWindow = 0;
+
+  /**
+   * The most messages in a batch.
+   */
+  private int batchMaxMessages;
+
+  /**
+   * The number of messages after which the object stream going to a
+   * legacy client is reset, or 0.
+   */
+  private int resetMessages = StreamResetPolicy.DEFAULT_MESSAGES;
+
+  /**
+   * The number of bytes after which the object stream going to a
+   * legacy client is reset, or 0.
+   */
+  private long resetBytes = StreamResetPolicy.DEFAULT_BYTES;
+
+  /**
+   * The codecs accepted from clients using the framed protocol.
+   */
+  private volatile MessageCodec[] codecs = Codecs.defaults();
+
+  /**
+   * The threads running the writer tasks that drain send queues.
+   */
+  private ExecutorService writers;
+
+  /**
+   * Lock guarding the creation of the writer threads. Not the server
+   * itself, since writers are started while holding connection locks.
+   */
+  private final Object writersLock = new Object();
+
+  /**
+   * The time a client has to complete its handshake, in milliseconds,
+   * or 0 for no limit.
+   * Set to 10 seconds by default.
+   */
+  private volatile int handshakeTimeout = 10000;
+
+  /**
+   * The maximum number of connections whose handshake is not over;
+   * connections accepted beyond it are closed at once.
+   * Set to 1000 by default.
+   */
+  private volatile int maxPendingHandshakes = 1000;
+
+  /**
+   * The number of connections whose handshake is not over.
+   */
+  private final AtomicInteger pendingHandshakes = new AtomicInteger();
+
+  /**
+   * The time after which a client that sends heartbeats is disconnected
+   * if nothing more comes from it, in milliseconds, or 0 to never
+   * disconnect it.
+   * Set to 45 seconds by default.
+   */
+  private volatile int heartbeatTimeout = 45000;
+
+  /**
+   * The connections currently open, whatever the way they are
+   * serviced.
+   */
+  private final ConnectionRegistry registry = new ConnectionRegistry();
+
+  /**
+   * The members of each room.
+   */
+  private final RoomIndex rooms = new RoomIndex();
+
+  /**
+   * The counters and histograms describing the activity of the server.
+   */
+  private final ServerMetrics metrics = new ServerMetrics(registry);
 
 
 // CONSTRUCTOR ******************************************************
@@ -119,12 +360,42 @@ public abstract class AbstractServer implements Runnable
   {
     if (!isListening())
     {
-      if (serverSocket == null)
+      if (serverChannel == null)
+      {
+        // Accepted connections get channels too, which the reactors
+        // need; the other modes use their blocking socket.
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(getPort()), backlog);
+        serverChannel.configureBlocking(false);
+      }
+
+      if (connectionMode == SELECTOR && reactors == null)
       {
-        serverSocket = new ServerSocket(getPort(), backlog);
+        reactors = new ConnectionReactor[reactorCount];
+        for (int i=0; i<reactors.length; i++)
+        {
+          reactors[i] = new ConnectionReactor(i);
+        }
       }
 
-      serverSocket.setSoTimeout(timeout);
+      synchronized (this)
+      {
+        if (batchWindow > 0 && batcher == null)
+          batcher = new BroadcastBatcher(this, batchWindow, batchMaxMessages);
+      }
+
+      Selector selector = Selector.open();
+      try
+      {
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+      }
+      catch (IOException ex)
+      {
+        selector.close();
+        throw ex;
+      }
+
+      acceptSelector = selector;
       readyToStop = false;
       connectionListener = new Thread(this);
       connectionListener.start();
@@ -132,11 +403,16 @@ public abstract class AbstractServer implements Runnable
   }
 
   /**
-   * Causes the server to stop accepting new connections.
+   * Causes the server to stop accepting new connections. The
+   * listening thread is woken up, so it stops at once.
    */
   final public void stopListening()
   {
     readyToStop = true;
+
+    Selector selector = acceptSelector;
+    if (selector != null)
+      selector.wakeup();
   }
 
   /**
@@ -153,27 +429,63 @@ public abstract class AbstractServer implements Runnable
    */
   final synchronized public void close() throws IOException
   {
-    if (serverSocket == null)
+    if (serverChannel == null)
       return;
       stopListening();
     try
     {
-      serverSocket.close();
+      serverChannel.close();
     }
     finally
     {
+      // Send the broadcasts being batched while their clients are
+      // still there; later broadcasts are sent on their own
+      BroadcastBatcher b = batcher;
+      batcher = null;
+      ConnectionRegistry.Snapshot clients;
+      if (b != null)
+      {
+        long deadline = System.nanoTime()
+          + TimeUnit.MILLISECONDS.toNanos(BATCHER_CLOSE_TIMEOUT);
+        b.shutdown();
+        b.awaitTermination(BATCHER_CLOSE_TIMEOUT);
+        clients = registry.snapshot();
+        for (int i=0; i<clients.size(); i++)
+        {
+          clients.get(i).awaitSent(deadline);
+        }
+      }
+
       // Close the client sockets of the already connected clients
-      Thread[] clientThreadList = getClientConnections();
-      for (int i=0; i<clientThreadList.length; i++)
+      clients = registry.snapshot();
+      for (int i=0; i<clients.size(); i++)
       {
          try
          {
-           ((ConnectionToClient)clientThreadList[i]).close();
+           clients.get(i).close();
          }
          // Ignore all exceptions when closing clients.
          catch(Exception ex) {}
       }
-      serverSocket = null;
+
+      if (reactors != null)
+      {
+        for (int i=0; i<reactors.length; i++)
+        {
+          reactors[i].shutdown();
+        }
+        reactors = null;
+      }
+
+      synchronized (writersLock)
+      {
+        if (writers != null)
+        {
+          writers.shutdown();
+          writers = null;
+        }
+      }
+      serverChannel = null;
       serverClosed();
     }
   }
@@ -186,21 +498,163 @@ public abstract class AbstractServer implements Runnable
    * function of sending to all clients, perhaps after some kind
    * of filtering is done. Any exception thrown while
    * sending the message to a particular client is ignored.
+   * The message is serialized once and the same frame is written to
+   * every client using the framed protocol.
    *
-   * @param msg   Object The message to be sent
+   * @param msg   Object The message to be sent, possibly already
+   *  wrapped in an <code>EncodedMessage</code>.
+   * @see #setBroadcastBatching(long, int)
    */
   public void sendToAllClients(Object msg)
   {
-    Thread[] clientThreadList = getClientConnections();
+    EncodedMessage encoded = msg instanceof EncodedMessage ?
+      (EncodedMessage)msg : new EncodedMessage(msg);
+    BroadcastBatcher b = batcher;
+    if (b != null && b.add(null, encoded))
+      return;
+
+    long start = System.nanoTime();
+    ConnectionRegistry.Snapshot clients = registry.snapshot();
 
-    for (int i=0; i<clientThreadList.length; i++)
+    for (int i=0; i<clients.size(); i++)
     {
       try
       {
-        ((ConnectionToClient)clientThreadList[i]).sendToClient(msg);
+        clients.get(i).sendToClient(encoded);
       }
       catch (Exception ex) {}
     }
+    countBroadcast(clients.size(), start);
+    broadcastSent(null, encoded);
+  }
+
+  /**
+   * Sends a message to every member of a room. Like sendToAllClients,
+   * the message is serialized once for all members, and any exception
+   * thrown while sending it to a particular member is ignored.
+   *
+   * @param room the name of the room.
+   * @param msg the message, possibly already wrapped in an
+   *  <code>EncodedMessage</code>.
+   */
+  public void sendToRoom(String room, Object msg)
+  {
+    EncodedMessage encoded = msg instanceof EncodedMessage ?
+      (EncodedMessage)msg : new EncodedMessage(msg);
+    BroadcastBatcher b = batcher;
+    if (b != null && b.add(room, encoded))
+      return;
+
+    long start = System.nanoTime();
+    ConnectionRegistry.Snapshot members = rooms.members(room);
+
+    for (int i=0; i<members.size(); i++)
+    {
+      try
+      {
+        members.get(i).sendToClient(encoded);
+      }
+      catch (Exception ex) {}
+    }
+    countBroadcast(members.size(), start);
+    broadcastSent(room, encoded);
+  }
+
+  /**
+   * Sends broadcasts coalesced by the batcher, in batches of at most
+   * maxBatch messages. Called on the thread of the batcher, which only
+   * queues them: every client, including a thread based one without a
+   * send queue, has them written by its own writer, so a slow client
+   * does not hold up the batches of the others.
+   *
+   * @param room the room, or null for all clients.
+   * @param msgs the messages, in the order they were broadcast.
+   * @param len the number of messages.
+   * @param maxBatch the most messages in a batch.
+   */
+  final void sendBatch(String room, EncodedMessage[] msgs, int len,
+    int maxBatch)
+  {
+    long start = System.nanoTime();
+    ConnectionRegistry.Snapshot clients = room == null ?
+      registry.snapshot() : rooms.members(room);
+
+    for (int off=0; off<len; off+=maxBatch)
+    {
+      int count = Math.min(maxBatch, len - off);
+      EncodedMessage[] batch = count > 1 ?
+        new EncodedMessage[] {EncodedMessage.batch(msgs, off, count)} : null;
+      for (int i=0; i<clients.size(); i++)
+      {
+        ConnectionToClient client = clients.get(i);
+        try
+        {
+          if (batch != null && client.acceptsBatches())
+            client.queueToClient(batch, 0, 1);
+          else
+            client.queueToClient(msgs, off, count);
+        }
+        catch (Exception ex) {}
+      }
+      for (int i=off; i<off+count; i++)
+      {
+        broadcastSent(room, msgs[i]);
+      }
+    }
+
+    metrics.broadcastTime.record(System.nanoTime() - start);
+    metrics.broadcasts.add(len);
+    metrics.broadcastRecipients.add((long)len * clients.size());
+  }
+
+  /**
+   * Records a broadcast in the metrics.
+   *
+   * @param recipients the number of clients the message was sent to.
+   * @param start when the broadcast started, from System.nanoTime().
+   */
+  private void countBroadcast(int recipients, long start)
+  {
+    metrics.broadcastTime.record(System.nanoTime() - start);
+    metrics.broadcasts.increment();
+    metrics.broadcastRecipients.add(recipients);
+  }
+
+  /**
+   * Adds a client to a room, creating the room if it does not exist.
+   * A client may be a member of several rooms, and leaves all of them
+   * when its connection is closed.
+   *
+   * @param room the name of the room.
+   * @param client the connection of the client.
+   * @return false if the client already was a member of the room, or
+   *  is no longer connected.
+   */
+  public boolean joinRoom(String room, ConnectionToClient client)
+  {
+    if (!rooms.join(room, client))
+      return false;
+
+    if (registry.find(client.getConnectionId()) != client)
+    {
+      // Closed meanwhile, after leaving its rooms
+      rooms.leaveAll(client);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Removes a client from a room. The room is forgotten when its last
+   * member leaves.
+   *
+   * @param room the name of the room.
+   * @param client the connection of the client.
+   * @return false if the client was not a member of the room.
+   */
+  public boolean leaveRoom(String room, ConnectionToClient client)
+  {
+    return rooms.leave(room, client);
   }
 
 
@@ -224,18 +678,74 @@ public abstract class AbstractServer implements Runnable
    * Remember that after this array is obtained, some clients
    * in this migth disconnect. New clients can also connect,
    * these later will not appear in the array.
+   * A new array is created on every call; code that runs often
+   * should iterate over getClientSnapshot() instead.
    *
    * @return an array of <code>Thread</code> containing
    * <code>ConnectionToClient</code> instances.
    */
-  synchronized final public Thread[] getClientConnections()
+  final public Thread[] getClientConnections()
   {
-    Thread[] clientThreadList = new
-      Thread[clientThreadGroup.activeCount()];
+    return registry.toArray();
+  }
 
-    clientThreadGroup.enumerate(clientThreadList);
+  /**
+   * Returns an immutable snapshot of the existing client connections,
+   * oldest first. Obtaining and iterating over the snapshot neither
+   * locks nor allocates. As with getClientConnections, clients may
+   * disconnect after the snapshot is taken, and clients that connect
+   * later do not appear in it.
+   *
+   * @return the current snapshot of the client connections.
+   */
+  final public ConnectionRegistry.Snapshot getClientSnapshot()
+  {
+    return registry.snapshot();
+  }
 
-    return clientThreadList;
+  /**
+   * Looks a client connection up by its id.
+   *
+   * @param connectionId the id of the connection.
+   * @return the connection, or null if no connected client has this id.
+   * @see ocsf.server.ConnectionToClient#getConnectionId()
+   */
+  final public ConnectionToClient getClientConnection(long connectionId)
+  {
+    return registry.find(connectionId);
+  }
+
+  /**
+   * Returns an immutable snapshot of the members of a room, which can
+   * be iterated over without locking or allocating.
+   *
+   * @param room the name of the room.
+   * @return the members, empty if the room has none.
+   */
+  final public ConnectionRegistry.Snapshot getRoomMembers(String room)
+  {
+    return rooms.members(room);
+  }
+
+  /**
+   * Returns the rooms a client is a member of.
+   *
+   * @param client the connection of the client.
+   * @return the names of the rooms.
+   */
+  final public String[] getRoomsOf(ConnectionToClient client)
+  {
+    return rooms.roomsOf(client);
+  }
+
+  /**
+   * Returns the rooms that currently have members.
+   *
+   * @return the names of the rooms.
+   */
+  final public String[] getRoomNames()
+  {
+    return rooms.names();
   }
 
   /**
@@ -245,7 +755,19 @@ public abstract class AbstractServer implements Runnable
    */
   final public int getNumberOfClients()
   {
-    return clientThreadGroup.activeCount();
+    return registry.size();
+  }
+
+  /**
+   * Returns the counters and histograms describing the activity of
+   * the server: connections, messages and bytes exchanged, broadcast
+   * times and send queues.
+   *
+   * @return the metrics of the server.
+   */
+  final public ServerMetrics getMetrics()
+  {
+    return metrics;
   }
 
   /**
@@ -271,17 +793,16 @@ public abstract class AbstractServer implements Runnable
   }
 
   /**
-   * Sets the timeout time when accepting connections.
-   * The default is half a second. This means that stopping the
-   * server may take up to timeout duration to actually stop.
-   * The server must be stopped and restarted for the timeout
-   * change to be effective.
+   * Formerly set how often the listening thread checked whether
+   * the server had been stopped. The listening thread now waits on
+   * a selector that stopListening wakes up, so this has no effect.
    *
    * @param timeout the timeout time in ms.
+   * @deprecated stopping the server no longer waits for a timeout.
    */
+  @Deprecated
   final public void setTimeout(int timeout)
   {
-    this.timeout = timeout;
   }
 
   /**
@@ -297,6 +818,381 @@ public abstract class AbstractServer implements Runnable
     this.backlog = backlog;
   }
 
+  /**
+   * Selects how connections are serviced: THREAD_PER_CONNECTION (the
+   * default) starts a thread for every client, SELECTOR services all
+   * clients from a small pool of reactor threads and
+   * VIRTUAL_THREAD_PER_CONNECTION runs the read loop of every client
+   * on a virtual thread. In selector mode clients must use the framed
+   * protocol.
+   * The server must be closed and restarted for the mode
+   * change to be in effect.
+   *
+   * @param connectionMode THREAD_PER_CONNECTION, SELECTOR or
+   *  VIRTUAL_THREAD_PER_CONNECTION.
+   */
+  final public void setConnectionMode(int connectionMode)
+  {
+    if (connectionMode != THREAD_PER_CONNECTION
+      && connectionMode != SELECTOR
+      && connectionMode != VIRTUAL_THREAD_PER_CONNECTION)
+      throw new IllegalArgumentException(
+        "unknown connection mode " + connectionMode);
+
+    this.connectionMode = connectionMode;
+  }
+
+  /**
+   * Returns the way connections are serviced.
+   *
+   * @return THREAD_PER_CONNECTION, SELECTOR or
+   *  VIRTUAL_THREAD_PER_CONNECTION.
+   */
+  final public int getConnectionMode()
+  {
+    return connectionMode;
+  }
+
+  /**
+   * Sets the number of reactor threads used in selector mode.
+   * The default is the number of processors, up to 4.
+   * The server must be closed and restarted for the
+   * change to be in effect.
+   *
+   * @param reactorCount the number of reactor threads.
+   */
+  final public void setReactorCount(int reactorCount)
+  {
+    if (reactorCount < 1)
+      throw new IllegalArgumentException("at least one reactor is needed");
+
+    this.reactorCount = reactorCount;
+  }
+
+  /**
+   * Gives every client a bounded queue of outgoing messages, drained
+   * by writer tasks, so that a client that reads slowly no longer
+   * holds up the thread sending to it, for instance during a
+   * broadcast. When the queue of a client is full, the overflow policy
+   * decides what happens: OVERFLOW_DROP_OLDEST discards the oldest
+   * queued message, OVERFLOW_DISCONNECT closes the connection and
+   * OVERFLOW_BLOCK makes the sender wait.
+   * A capacity of 0, the default, writes messages on the sending
+   * thread; clients serviced by reactors then get an unbounded queue.
+   * Only connections accepted after the call are affected.
+   *
+   * @param capacity the maximum number of queued messages per client.
+   * @param overflowPolicy OVERFLOW_DROP_OLDEST, OVERFLOW_DISCONNECT or
+   *  OVERFLOW_BLOCK.
+   */
+  final public void setSendQueue(int capacity, int overflowPolicy)
+  {
+    if (capacity < 0)
+      throw new IllegalArgumentException("negative capacity " + capacity);
+    if (overflowPolicy != OVERFLOW_DROP_OLDEST
+      && overflowPolicy != OVERFLOW_DISCONNECT
+      && overflowPolicy != OVERFLOW_BLOCK)
+      throw new IllegalArgumentException(
+        "unknown overflow policy " + overflowPolicy);
+
+    this.sendQueueCapacity = capacity;
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  /**
+   * Limits how fast each client may send, so that a single client
+   * cannot flood the server, and through broadcasts every other
+   * client. Each connection gets two token buckets: one refilled at
+   * the given message rate and holding up to the message burst, the
+   * other likewise for bytes. A message is handled if both buckets
+   * have enough tokens; otherwise the policy decides:
+   * RATE_LIMIT_THROTTLE waits until they have, RATE_LIMIT_DROP
+   * discards the message and RATE_LIMIT_DISCONNECT closes the
+   * connection. In selector mode a throttled client is resumed by the
+   * shared timer wheel, so by steps of a tenth of a second. Bytes are
+   * only counted on framed connections. Only connections accepted
+   * after the call are affected.
+   *
+   * @param messagesPerSecond the sustained message rate, or 0 for no
+   *  limit.
+   * @param messageBurst the number of messages a client may send at
+   *  once.
+   * @param bytesPerSecond the sustained byte rate, or 0 for no limit.
+   * @param byteBurst the number of bytes a client may send at once.
+   * @param policy RATE_LIMIT_THROTTLE, RATE_LIMIT_DROP or
+   *  RATE_LIMIT_DISCONNECT.
+   * @see ServerMetrics
+   */
+  final public void setRateLimit(double messagesPerSecond, int messageBurst,
+    double bytesPerSecond, int byteBurst, int policy)
+  {
+    if (messagesPerSecond < 0 || bytesPerSecond < 0)
+      throw new IllegalArgumentException("negative rate");
+    if (policy != RATE_LIMIT_THROTTLE
+      && policy != RATE_LIMIT_DROP
+      && policy != RATE_LIMIT_DISCONNECT)
+      throw new IllegalArgumentException(
+        "unknown rate limit policy " + policy);
+
+    this.messagesPerSecond = messagesPerSecond;
+    this.messageBurst = messageBurst;
+    this.bytesPerSecond = bytesPerSecond;
+    this.byteBurst = byteBurst;
+    this.rateLimitPolicy = policy;
+  }
+
+  /**
+   * Returns what happens to a client that sends too fast.
+   *
+   * @return RATE_LIMIT_THROTTLE, RATE_LIMIT_DROP or
+   *  RATE_LIMIT_DISCONNECT.
+   */
+  final public int getRateLimitPolicy()
+  {
+    return rateLimitPolicy;
+  }
+
+  /**
+   * Makes the broadcasts, sendToAllClients and sendToRoom, coalesce
+   * when many are made within a short window: the first one waits up
+   * to the window, and those that follow in the meantime go with it
+   * in a single batch frame per client, up to a number of messages.
+   * This saves a write per message and per client when many users
+   * talk at once, for a delay of at most the window.
+   * <p>
+   * Batches are sent by a thread of their own, to the clients that
+   * are connected or in the room at that time, so the broadcasting
+   * thread no longer waits for the clients. Broadcasts to all clients
+   * and to each room are batched separately, and messages sent to a
+   * single client are not batched: either may overtake a broadcast
+   * made before it. Clients that predate batches, or use a legacy
+   * object stream, get the messages of a batch as separate frames.
+   * Closing the server sends the broadcasts being batched before the
+   * clients are closed.
+   *
+   * @param window how long the first message of a batch may wait,
+   *  in milliseconds, or 0 to send every broadcast on its own.
+   * @param maxMessages the most messages in a batch.
+   */
+  final synchronized public void setBroadcastBatching(long window,
+    int maxMessages)
+  {
+    if (window < 0)
+      throw new IllegalArgumentException("negative window");
+    if (window > 0 && (maxMessages < 1 || maxMessages > Frames.MAX_BATCH_COUNT))
+      throw new IllegalArgumentException(
+        "between 1 and " + Frames.MAX_BATCH_COUNT + " messages per batch");
+
+    batchWindow = window;
+    batchMaxMessages = maxMessages;
+    BroadcastBatcher previous = batcher;
+    batcher = window > 0 && serverChannel != null ?
+      new BroadcastBatcher(this, window, maxMessages) : null;
+    if (previous != null)
+      previous.shutdown(); // sends what it holds
+  }
+
+  /**
+   * Returns the maximum number of messages queued for each client.
+   *
+   * @return the capacity, or 0 if messages are not queued.
+   */
+  final public int getSendQueueCapacity()
+  {
+    return sendQueueCapacity;
+  }
+
+  /**
+   * Returns what happens when the send queue of a client is full.
+   *
+   * @return OVERFLOW_DROP_OLDEST, OVERFLOW_DISCONNECT or OVERFLOW_BLOCK.
+   */
+  final public int getOverflowPolicy()
+  {
+    return overflowPolicy;
+  }
+
+  /**
+   * Sets the time a client has to complete its handshake, that is, to
+   * send the first bytes that tell its protocol. A client that takes
+   * longer is disconnected without calling any hook method, so clients
+   * that connect and send nothing cannot hold sockets and threads
+   * forever. The default is 10 seconds.
+   * Only connections accepted after the call are affected.
+   *
+   * @param timeout the timeout in milliseconds, or 0 for no limit.
+   */
+  final public void setHandshakeTimeout(int timeout)
+  {
+    this.handshakeTimeout = timeout;
+  }
+
+  /**
+   * Returns the time a client has to complete its handshake.
+   *
+   * @return the timeout in milliseconds, or 0 for no limit.
+   */
+  final public int getHandshakeTimeout()
+  {
+    return handshakeTimeout;
+  }
+
+  /**
+   * Sets the time after which a client is considered gone if nothing
+   * comes from it. Only applies to clients that send heartbeats, as
+   * <code>AbstractClient</code> does over the framed protocol: once a
+   * client has sent one, the server answers each of them and, if the
+   * client stays silent for the timeout, closes the connection and calls
+   * clientDisconnected. This frees the resources of clients whose
+   * machine vanished without closing the connection. The checks run on
+   * a timer wheel shared by all the connections. The timeout must be
+   * longer than the heartbeat interval of the clients. The default is
+   * 45 seconds.
+   *
+   * @param timeout the timeout in milliseconds, or 0 to never
+   *  disconnect silent clients.
+   */
+  final public void setHeartbeatTimeout(int timeout)
+  {
+    this.heartbeatTimeout = timeout;
+  }
+
+  /**
+   * Returns the time after which a client that sends heartbeats is
+   * considered gone if nothing comes from it.
+   *
+   * @return the timeout in milliseconds, or 0.
+   */
+  final public int getHeartbeatTimeout()
+  {
+    return heartbeatTimeout;
+  }
+
+  /**
+   * Sets the maximum number of connections allowed to be in their
+   * handshake at the same time. While it is reached, newly accepted
+   * connections are closed at once, which bounds what a flood of
+   * connections that never complete their handshake can take.
+   * The default is 1000.
+   *
+   * @param max the maximum number of pending handshakes.
+   */
+  final public void setMaxPendingHandshakes(int max)
+  {
+    if (max < 1)
+      throw new IllegalArgumentException("at least one handshake must be allowed");
+    this.maxPendingHandshakes = max;
+  }
+
+  /**
+   * Returns the maximum number of connections allowed to be in their
+   * handshake at the same time.
+   *
+   * @return the maximum number of pending handshakes.
+   */
+  final public int getMaxPendingHandshakes()
+  {
+    return maxPendingHandshakes;
+  }
+
+  /**
+   * Sets how often the object streams going to legacy clients are
+   * reset, so that the objects they remember, on both sides, do not
+   * accumulate for the lifetime of the connection. A stream is reset
+   * after the given number of messages or bytes, whichever comes first;
+   * 0 disables a limit. The default is every 1000 messages or 1 MB.
+   * Framed connections are not affected. Only connections accepted
+   * after the call are affected.
+   *
+   * @param messages the number of messages between resets.
+   * @param bytes the number of bytes between resets.
+   */
+  final public void setResetPolicy(int messages, long bytes)
+  {
+    this.resetMessages = messages;
+    this.resetBytes = bytes;
+  }
+
+  /**
+   * Returns the number of messages between resets of the object
+   * streams going to legacy clients.
+   *
+   * @return the number of messages, or 0 if there is no limit.
+   */
+  final public int getResetMessages()
+  {
+    return resetMessages;
+  }
+
+  /**
+   * Returns the number of bytes between resets of the object streams
+   * going to legacy clients.
+   *
+   * @return the number of bytes, or 0 if there is no limit.
+   */
+  final public long getResetBytes()
+  {
+    return resetBytes;
+  }
+
+  /**
+   * Sets the codecs the server accepts from clients using the framed
+   * protocol. Each client proposes codecs in order of preference and
+   * gets the first one listed here. By default, the text and the
+   * serialization codecs are accepted. Only connections accepted after
+   * the call are affected.
+   *
+   * @param codecs the codecs accepted, with distinct ids between 1
+   *  and <code>Codecs.MAX_ID</code>.
+   * @see ocsf.common.Codecs
+   */
+  final public void setCodecs(MessageCodec[] codecs)
+  {
+    if (codecs.length == 0)
+      throw new IllegalArgumentException("at least one codec is needed");
+    Codecs.checkIds(codecs);
+
+    this.codecs = codecs.clone();
+  }
+
+  /**
+   * Returns the codecs the server accepts.
+   *
+   * @return the codecs accepted. Must not be modified.
+   */
+  final MessageCodec[] getCodecs()
+  {
+    return codecs;
+  }
+
+  /**
+   * Selects whether messages are dispatched one at a time for the
+   * whole server. By default, messages from the same client are always
+   * handled in the order they were sent, one after the other, but
+   * messages from different clients are handled in parallel. Subclasses
+   * whose handleMessageFromClient is not thread safe can turn serialized
+   * dispatch on to get the behaviour of earlier versions, in which
+   * every message was handled while holding the server's lock.
+   *
+   * @param serializedDispatch true to handle one message at a time.
+   */
+  final public void setSerializedDispatch(boolean serializedDispatch)
+  {
+    this.serializedDispatch = serializedDispatch;
+  }
+
+  /**
+   * Returns true if messages are dispatched one at a time for the
+   * whole server.
+   *
+   * @return true if dispatch is serialized.
+   */
+  final public boolean isSerializedDispatch()
+  {
+    return serializedDispatch;
+  }
+
+
 // RUN METHOD -------------------------------------------------------
 
   /**
@@ -305,33 +1201,66 @@ public abstract class AbstractServer implements Runnable
    */
   final public void run()
   {
+    Selector selector = acceptSelector;
+
     // call the hook method to notify that the server is starting
     serverStarted();
 
     try
     {
-      // Repeatedly waits for a new client connection, accepts it, and
-      // starts a new thread to handle data exchange.
+      // Repeatedly waits for new client connections, accepts them, and
+      // hands each to a thread or a reactor to handle data exchange.
+      // The handshake is done there, never on this thread.
       while(!readyToStop)
       {
-        try
+        // Wait here for new connection attempts, or for stopListening
+        selector.select();
+        selector.selectedKeys().clear();
+
+        SocketChannel channel;
+        while (!readyToStop && (channel = serverChannel.accept()) != null)
         {
-          // Wait here for new connection attempts, or a timeout
-          Socket clientSocket = serverSocket.accept();
+          if (pendingHandshakes.get() >= maxPendingHandshakes)
+          {
+            // Too many clients connected without saying anything yet
+            metrics.refused.increment();
+            try
+            {
+              channel.close();
+            }
+            catch (IOException exception) {}
+            continue;
+          }
 
-          // When a client is accepted, create a thread to handle
-          // the data exchange, then add it to thread group
+          metrics.accepted.increment();
+          pendingHandshakes.incrementAndGet();
 
-          synchronized(this)
+          try
           {
-            ConnectionToClient c = new ConnectionToClient(
-              this.clientThreadGroup, clientSocket, this);
+            ConnectionToClient c;
+            synchronized(this)
+            {
+              ConnectionReactor[] pool = reactors;
+
+              if (pool != null)
+              {
+                c = new ConnectionToClient(
+                  channel, pool[nextReactor++ % pool.length], this);
+              }
+              else
+              {
+                c = new ConnectionToClient(
+                  this.clientThreadGroup, channel.socket(), this,
+                  connectionMode == VIRTUAL_THREAD_PER_CONNECTION);
+              }
+            }
+            watchHandshake(c);
+          }
+          catch (IOException exception)
+          {
+            // Only this client is lost; keep listening
+            metrics.closed.increment();
           }
-        }
-        catch (InterruptedIOException exception)
-        {
-          // This will be thrown when a timeout occurs.
-          // The server will continue to listen if not ready to stop.
         }
       }
 
@@ -352,6 +1281,15 @@ public abstract class AbstractServer implements Runnable
     }
     finally
     {
+      try
+      {
+        // Closing the selector deregisters the server channel, which
+        // can then be registered again by the next call to listen
+        selector.close();
+      }
+      catch (IOException exception) {}
+
+      acceptSelector = null;
       readyToStop = true;
       connectionListener = null;
     }
@@ -389,6 +1327,22 @@ public abstract class AbstractServer implements Runnable
   synchronized protected void clientException(
     ConnectionToClient client, Throwable exception) {}
 
+  /**
+   * Hook method called once a broadcast made with sendToAllClients
+   * or sendToRoom was sent to its recipients, that is, with
+   * broadcast batching, when its batch is sent rather than when the
+   * broadcast is made. Useful to record what the recipients got, such
+   * as the history of a room, without a client that joins in the
+   * meantime getting a message twice.
+   * The default implementation does nothing.
+   * This method may be overriden by subclasses.
+   *
+   * @param room the room, or null for a broadcast to all clients.
+   * @param msg the message.
+   * @see #setBroadcastBatching(long, int)
+   */
+  protected void broadcastSent(String room, EncodedMessage msg) {}
+
   /**
    * Hook method called when the server stops accepting
    * connections because an exception has been raised.
@@ -425,8 +1379,11 @@ public abstract class AbstractServer implements Runnable
    * Handles a command sent from one client to the server.
    * This MUST be implemented by subclasses, who should respond to
    * messages.
-   * This method is called by a synchronized method so it is also
-   * implcitly synchronized.
+   * Calls for the same client never overlap and arrive in the order
+   * the messages were sent, but calls for different clients may run
+   * concurrently unless serialized dispatch is turned on.
+   *
+   * @see #setSerializedDispatch(boolean)
    *
    * @param msg   the message sent.
    * @param client the connection connected to the client that
@@ -442,18 +1399,149 @@ public abstract class AbstractServer implements Runnable
    * Receives a command sent from the client to the server.
    * Called by the run method of <code>ConnectionToClient</code>
    * instances that are watching for messages coming from the server
-   * This method is synchronized to ensure that whatever effects it has
-   * do not conflict with work being done by other threads. The method
-   * simply calls the <code>handleMessageFromClient</code> slot method.
+   * Each connection calls this method from a single thread at a time,
+   * which preserves the order of its messages. The method
+   * simply calls the <code>handleMessageFromClient</code> slot method,
+   * holding the server's lock only if serialized dispatch is on.
    *
    * @param msg   the message sent.
    * @param client the connection connected to the client that
    *  sent the message.
    */
-  final synchronized void receiveMessageFromClient(
+  final void receiveMessageFromClient(
     Object msg, ConnectionToClient client)
   {
-    this.handleMessageFromClient(msg, client);
+    metrics.messagesIn.increment();
+    if (serializedDispatch)
+    {
+      synchronized (this)
+      {
+        this.handleMessageFromClient(msg, client);
+      }
+    }
+    else
+    {
+      this.handleMessageFromClient(msg, client);
+    }
+  }
+
+  /**
+   * Runs a writer task draining the send queue of a connection. Writer
+   * tasks run on virtual threads in VIRTUAL_THREAD_PER_CONNECTION mode
+   * and on a shared pool of threads otherwise.
+   *
+   * @param task the writer task.
+   * @param name the name of the connection.
+   */
+  final void startWriter(Runnable task, String name)
+  {
+    if (connectionMode == VIRTUAL_THREAD_PER_CONNECTION)
+    {
+      VirtualThreads.start(task, name + " writer");
+      return;
+    }
+
+    synchronized (writersLock)
+    {
+      if (writers == null)
+      {
+        writers = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+          public Thread newThread(Runnable r)
+          {
+            Thread thread = new Thread(r, "OCSF writer");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+      }
+      writers.execute(task);
+    }
+  }
+
+  /**
+   * Returns the token buckets of a new connection.
+   *
+   * @return the buckets, or null if clients are not limited.
+   */
+  final RateLimiter newRateLimiter()
+  {
+    if (messagesPerSecond <= 0 && bytesPerSecond <= 0)
+      return null;
+    return new RateLimiter(messagesPerSecond, messageBurst, bytesPerSecond, byteBurst);
+  }
+
+  /**
+   * Closes a new connection if its handshake is not over in time.
+   *
+   * @param client the new connection.
+   */
+  private void watchHandshake(final ConnectionToClient client)
+  {
+    int timeout = handshakeTimeout;
+    if (timeout <= 0)
+      return;
+
+    // The deadline outlives the server if it is closed meanwhile, so
+    // clients still in their handshake, not registered yet, are closed
+    // too
+    client.setHandshakeDeadline(TimerWheel.shared().schedule(new Runnable()
+    {
+      public void run()
+      {
+        client.handshakeTimedOut();
+      }
+    }, timeout, TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Called by a connection when its handshake is over, successfully or
+   * not.
+   *
+   * @param client the connection.
+   * @param timedOut true if the connection is closed because the
+   *  handshake took too long.
+   */
+  final void handshakeEnded(ConnectionToClient client, boolean timedOut)
+  {
+    pendingHandshakes.decrementAndGet();
+    if (timedOut)
+      metrics.handshakeTimeouts.increment();
+  }
+
+  /**
+   * Returns a new connection id. Called by the constructors of
+   * <code>ConnectionToClient</code>.
+   *
+   * @return an id unique for this server.
+   */
+  final long nextConnectionId()
+  {
+    return registry.nextId();
+  }
+
+  /**
+   * Records a connection once it is ready to exchange messages, so that
+   * it is returned by getClientConnections.
+   *
+   * @param client the connection to add.
+   */
+  final void registerConnection(ConnectionToClient client)
+  {
+    registry.add(client);
+  }
+
+  /**
+   * Forgets a connection when it is closed, removing it from its
+   * rooms.
+   *
+   * @param client the connection to remove.
+   */
+  final void unregisterConnection(ConnectionToClient client)
+  {
+    if (registry.remove(client))
+      metrics.closed.increment();
+    rooms.leaveAll(client);
   }
 }
 // End of AbstractServer Class
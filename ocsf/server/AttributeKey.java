@@ -0,0 +1,80 @@
+package ocsf.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Identifies a piece of information a server keeps about each client, such
+ * as its login id, and gives its type. Every key gets its own slot in an
+ * array held by each connection, so reading an attribute is an array access
+ * rather than a hash lookup.
+ * <p>
+ * Keys are meant to be created once and kept in constants:
+ *
+ * <pre>
+ * static final AttributeKey&lt;String&gt; LOGIN_ID = new AttributeKey&lt;String&gt;(&quot;login id&quot;);
+ * </pre>
+ *
+ * Each key created takes a slot in every connection for the life of the
+ * process, so keys must not be created per client or per message.
+ * Information named at run time, such as names read from the input, belongs
+ * in <code>setInfo</code> and <code>getInfo</code>, which keep it in a map of
+ * the connection instead.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @param <T>
+ *            the type of the attribute.
+ * @see ocsf.server.ConnectionToClient#getAttribute(AttributeKey)
+ */
+public final class AttributeKey<T> {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The number of keys created so far, which is the index of the next one.
+	 */
+	private static final AtomicInteger	count	= new AtomicInteger();
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The index of the slot of the attribute in every connection.
+	 */
+	final int							index;
+
+	/**
+	 * The name of the attribute, for debugging.
+	 */
+	private final String				name;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a key distinct from every other one, even one with the same
+	 * name. Code that must share an attribute shares the key.
+	 *
+	 * @param name
+	 *            the name of the attribute, for debugging.
+	 */
+	public AttributeKey(String name) {
+		this.name = name;
+		this.index = count.getAndIncrement();
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return the name of the attribute.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the name of the attribute.
+	 */
+	public String toString() {
+		return name;
+	}
+}
+// End of AttributeKey class
@@ -0,0 +1,223 @@
+package ocsf.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces the broadcasts of a server made within a short window, so that a
+ * burst of them reaches each client as one batch frame, in one write, rather
+ * than as one frame per message. Broadcasts to all clients and to each room
+ * are batched separately: the first one starts a batch, which is sent when the
+ * window is over or when it holds the most messages allowed, whichever comes
+ * first.
+ * <p>
+ * Batches are sent by a thread of the batcher, in the order they are
+ * complete, to the clients connected or in the room at that time. Clients that
+ * do not unpack batches get the messages of a batch as separate frames,
+ * written together.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setBroadcastBatching(long, int)
+ */
+final class BroadcastBatcher {
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * The messages waiting to be broadcast to the same clients.
+	 */
+	private static final class Batch {
+		/**
+		 * The room, or null for all clients.
+		 */
+		final String		room;
+
+		/**
+		 * When the batch must be sent, from <code>System.nanoTime()</code>.
+		 */
+		final long			deadline;
+
+		EncodedMessage[]	msgs	= new EncodedMessage[8];
+
+		int					count;
+
+		Batch(String room, long deadline) {
+			this.room = room;
+			this.deadline = deadline;
+		}
+
+		void add(EncodedMessage msg) {
+			if (count == msgs.length)
+				msgs = Arrays.copyOf(msgs, count * 2);
+			msgs[count++] = msg;
+		}
+	}
+
+	// INSTANCE VARIABLES ***********************************************
+
+	private final AbstractServer					server;
+
+	/**
+	 * How long the first message of a batch may wait, in nanoseconds.
+	 */
+	private final long								windowNanos;
+
+	/**
+	 * The most messages in a batch frame.
+	 */
+	private final int								maxMessages;
+
+	/**
+	 * The batches being filled, by room, in the order they were started, which
+	 * is also the order of their deadlines. Also the lock of the batcher.
+	 */
+	private final LinkedHashMap<String, Batch>	pending	= new LinkedHashMap<String, Batch>();
+
+	/**
+	 * Set when the batcher is shut down.
+	 */
+	private boolean									stopped;
+
+	/**
+	 * The thread sending the batches.
+	 */
+	private final Thread							sender;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a batcher and starts its thread, a daemon thread.
+	 *
+	 * @param server
+	 *            the server whose broadcasts are batched.
+	 * @param window
+	 *            how long the first message of a batch may wait, in
+	 *            milliseconds.
+	 * @param maxMessages
+	 *            the most messages in a batch frame.
+	 */
+	BroadcastBatcher(AbstractServer server, long window, int maxMessages) {
+		this.server = server;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(window);
+		this.maxMessages = maxMessages;
+
+		sender = new Thread("OCSF broadcast batcher") {
+			public void run() {
+				sendBatches();
+			}
+		};
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Adds a message to the batch of its recipients.
+	 *
+	 * @param room
+	 *            the room, or null for all clients.
+	 * @param msg
+	 *            the message.
+	 * @return false if the batcher is shut down; the caller must then send
+	 *         the message itself.
+	 */
+	boolean add(String room, EncodedMessage msg) {
+		synchronized (pending) {
+			if (stopped)
+				return false;
+
+			Batch batch = pending.get(room);
+			if (batch == null) {
+				batch = new Batch(room, System.nanoTime() + windowNanos);
+				pending.put(room, batch);
+				if (pending.size() == 1)
+					pending.notify(); // the thread waits for nothing
+			}
+			batch.add(msg);
+			if (batch.count == maxMessages)
+				pending.notify(); // full, send it now
+			return true;
+		}
+	}
+
+	/**
+	 * Stops the batcher. The batches being filled are sent before its thread
+	 * ends.
+	 */
+	void shutdown() {
+		synchronized (pending) {
+			stopped = true;
+			pending.notify();
+		}
+	}
+
+	/**
+	 * Waits for the thread of a batcher that was shut down to send the
+	 * batches it held.
+	 *
+	 * @param timeout
+	 *            the longest wait, in milliseconds.
+	 */
+	void awaitTermination(long timeout) {
+		try {
+			sender.join(timeout);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * The loop of the thread of the batcher: waits for batches to be due, then
+	 * sends them.
+	 */
+	private void sendBatches() {
+		ArrayList<Batch> due = new ArrayList<Batch>();
+		while (true) {
+			synchronized (pending) {
+				while (true) {
+					long now = System.nanoTime();
+					long wait = Long.MAX_VALUE;
+					Iterator<Batch> batches = pending.values().iterator();
+					while (batches.hasNext()) {
+						Batch batch = batches.next();
+						if (stopped || batch.count >= maxMessages || batch.deadline - now <= 0) {
+							due.add(batch);
+							batches.remove();
+						} else {
+							wait = Math.min(wait, batch.deadline - now);
+						}
+					}
+					if (!due.isEmpty())
+						break;
+					if (stopped)
+						return;
+
+					try {
+						if (wait == Long.MAX_VALUE)
+							pending.wait();
+						else
+							TimeUnit.NANOSECONDS.timedWait(pending, wait);
+					} catch (InterruptedException ex) {
+						// Not expected for a daemon thread; keep waiting
+					}
+				}
+			}
+
+			for (int i = 0; i < due.size(); i++) {
+				Batch batch = due.get(i);
+				try {
+					server.sendBatch(batch.room, batch.msgs, batch.count, maxMessages);
+				} catch (Throwable ex) {
+					// A failing batch must not stop the batcher
+				}
+			}
+			due.clear();
+		}
+	}
+}
+// End of BroadcastBatcher class
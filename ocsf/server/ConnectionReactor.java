@@ -0,0 +1,184 @@
+package ocsf.server;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An I/O reactor used by <code>AbstractServer</code> when it runs in
+ * selector mode. Each reactor owns a <code>Selector</code> and services the
+ * non-blocking channels of many <code>ConnectionToClient</code> instances from
+ * a single thread, so the number of threads no longer grows with the number of
+ * connected clients.
+ * <p>
+ * The reactor only waits for readiness events; the actual reading, frame
+ * decoding and writing is done by the connection itself.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setConnectionMode(int)
+ */
+final class ConnectionReactor extends Thread {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The selector watching the channels owned by this reactor.
+	 */
+	private final Selector							selector;
+
+	/**
+	 * Connections waiting to be registered with the selector. Registration
+	 * must happen on the reactor thread, so other threads hand them over
+	 * through this queue.
+	 */
+	private final Queue<ConnectionToClient>	pending	= new ConcurrentLinkedQueue<ConnectionToClient>();
+
+	/**
+	 * Connections whose reading was paused by their rate limit and may
+	 * resume.
+	 */
+	private final Queue<ConnectionToClient>	resumed	= new ConcurrentLinkedQueue<ConnectionToClient>();
+
+	/**
+	 * Indicates if the reactor is ready to stop.
+	 */
+	private volatile boolean						readyToStop;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs and starts a reactor.
+	 *
+	 * @param index
+	 *            the position of the reactor in the server's pool, used to
+	 *            name the thread.
+	 * @exception IOException
+	 *                if the selector cannot be opened.
+	 */
+	ConnectionReactor(int index) throws IOException {
+		super("OCSF reactor " + index);
+		selector = Selector.open();
+		setDaemon(true);
+		start();
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Hands a connection over to this reactor. The channel is registered for
+	 * reading the next time the reactor thread wakes up.
+	 *
+	 * @param client
+	 *            the connection to service.
+	 */
+	void register(ConnectionToClient client) {
+		pending.add(client);
+		selector.wakeup();
+	}
+
+	/**
+	 * Makes the reactor resume reading from a connection whose reading was
+	 * paused.
+	 *
+	 * @param client
+	 *            the connection.
+	 */
+	void resume(ConnectionToClient client) {
+		resumed.add(client);
+		selector.wakeup();
+	}
+
+	/**
+	 * Wakes the reactor up so that it picks up a change in the interest set of
+	 * one of its keys.
+	 */
+	void wakeup() {
+		selector.wakeup();
+	}
+
+	/**
+	 * Stops the reactor. Connections still registered are closed.
+	 */
+	void shutdown() {
+		readyToStop = true;
+		selector.wakeup();
+	}
+
+	// RUN METHOD -------------------------------------------------------
+
+	/**
+	 * Waits for readiness events and dispatches them to the connections. Not
+	 * to be called.
+	 */
+	public void run() {
+		try {
+			while (!readyToStop) {
+				selector.select();
+				registerPending();
+				resumeReading();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					ConnectionToClient client = (ConnectionToClient) key.attachment();
+					try {
+						if (key.isValid() && key.isReadable())
+							client.readFromChannel();
+						if (key.isValid() && key.isWritable())
+							client.flushToChannel();
+					} catch (Exception exception) {
+						client.channelFailed(exception);
+					}
+				}
+			}
+		} catch (IOException exception) {
+			// The selector itself failed; fall through and close everything.
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				try {
+					((ConnectionToClient) key.attachment()).close();
+				} catch (Exception ex) {
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException ex) {
+			}
+		}
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE REACTOR ONLY ------------------
+
+	/**
+	 * Resumes reading from the connections handed over by the timer wheel.
+	 */
+	private void resumeReading() {
+		ConnectionToClient client;
+		while ((client = resumed.poll()) != null) {
+			try {
+				client.resumeReading();
+			} catch (Exception exception) {
+				client.channelFailed(exception);
+			}
+		}
+	}
+
+	/**
+	 * Registers the connections handed over by other threads.
+	 */
+	private void registerPending() {
+		ConnectionToClient client;
+		while ((client = pending.poll()) != null) {
+			try {
+				client.attachTo(selector);
+			} catch (IOException exception) {
+				client.channelFailed(exception);
+			}
+		}
+	}
+}
+// End of ConnectionReactor class
@@ -0,0 +1,245 @@
+package ocsf.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the connections of an <code>AbstractServer</code>. Before
+ * this class existed the server enumerated its client thread group, which
+ * does not work for connections that have no running thread of their own,
+ * such as those serviced by reactors or by virtual threads.
+ * <p>
+ * The registry is copy-on-write: readers such as a broadcast iterate over an
+ * immutable {@link Snapshot} without locking or allocating anything. Adding or
+ * removing a connection publishes a new snapshot, finding the position of the
+ * connection with a binary search on its id and copying the others around it
+ * in one block, under a lock that only writers take. Connections are kept in
+ * the order of their ids, which is the order in which they connected, and
+ * each id is stable and can be used to look the connection up without a
+ * scan.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#getClientSnapshot()
+ */
+public final class ConnectionRegistry {
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * An immutable view of the connections registered at some point in time.
+	 * Iterate over it with {@link #size()} and {@link #get(int)}.
+	 */
+	public static final class Snapshot {
+		/**
+		 * The connections, oldest first. Never modified once published.
+		 */
+		private final ConnectionToClient[]	connections;
+
+		private Snapshot(ConnectionToClient[] connections) {
+			this.connections = connections;
+		}
+
+		/**
+		 * @return the number of connections in the snapshot.
+		 */
+		public int size() {
+			return connections.length;
+		}
+
+		/**
+		 * Returns a connection of the snapshot.
+		 *
+		 * @param index
+		 *            the position of the connection, 0 being the oldest.
+		 * @return the connection.
+		 */
+		public ConnectionToClient get(int index) {
+			return connections[index];
+		}
+
+		/**
+		 * @return the position of the connection in the snapshot, or -1.
+		 */
+		int indexOf(ConnectionToClient client) {
+			for (int i = 0; i < connections.length; i++) {
+				if (connections[i] == client)
+					return i;
+			}
+			return -1;
+		}
+
+		/**
+		 * @return the position of the connection with the given id, or, if
+		 *         there is none, <code>-(insertion point) - 1</code>.
+		 */
+		private int search(long connectionId) {
+			int low = 0, high = connections.length - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				long id = connections[middle].getConnectionId();
+				if (id < connectionId)
+					low = middle + 1;
+				else if (id > connectionId)
+					high = middle - 1;
+				else
+					return middle;
+			}
+			return -(low + 1);
+		}
+
+		/**
+		 * @return a snapshot with the connection inserted in the order of the
+		 *         ids, which this snapshot must not contain.
+		 */
+		private Snapshot inserted(ConnectionToClient client) {
+			int index = -search(client.getConnectionId()) - 1;
+			ConnectionToClient[] added = new ConnectionToClient[connections.length + 1];
+			System.arraycopy(connections, 0, added, 0, index);
+			added[index] = client;
+			System.arraycopy(connections, index, added, index + 1, connections.length - index);
+			return new Snapshot(added);
+		}
+
+		/**
+		 * @return a snapshot without the connection at a position.
+		 */
+		private Snapshot removed(int index) {
+			int length = connections.length - 1;
+			if (length == 0)
+				return EMPTY;
+
+			ConnectionToClient[] copy = new ConnectionToClient[length];
+			System.arraycopy(connections, 0, copy, 0, index);
+			System.arraycopy(connections, index + 1, copy, index, length - index);
+			return new Snapshot(copy);
+		}
+
+		/**
+		 * @return a snapshot with the connection added at the end, or this
+		 *         snapshot if it already contains the connection.
+		 */
+		Snapshot with(ConnectionToClient client) {
+			if (indexOf(client) >= 0)
+				return this;
+
+			ConnectionToClient[] added = new ConnectionToClient[connections.length + 1];
+			System.arraycopy(connections, 0, added, 0, connections.length);
+			added[connections.length] = client;
+			return new Snapshot(added);
+		}
+
+		/**
+		 * @return a snapshot without the connection, or this snapshot if it
+		 *         does not contain the connection.
+		 */
+		Snapshot without(ConnectionToClient client) {
+			int index = indexOf(client);
+			return index < 0 ? this : removed(index);
+		}
+	}
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The snapshot of a registry without connections.
+	 */
+	static final Snapshot							EMPTY		= new Snapshot(new ConnectionToClient[0]);
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The current snapshot. Replaced, never modified, while holding the lock
+	 * of <code>byId</code>.
+	 */
+	private volatile Snapshot						snapshot	= EMPTY;
+
+	/**
+	 * The registered connections by id. Also the lock serializing the
+	 * changes.
+	 */
+	private final ConcurrentHashMap<Long, ConnectionToClient>	byId	= new ConcurrentHashMap<Long, ConnectionToClient>();
+
+	/**
+	 * The id given to the next connection.
+	 */
+	private final AtomicLong						nextId		= new AtomicLong(1);
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return the current snapshot of the registered connections.
+	 */
+	public Snapshot snapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Looks a registered connection up by id.
+	 *
+	 * @param connectionId
+	 *            the id of the connection.
+	 * @return the connection, or null if no connection has this id.
+	 */
+	public ConnectionToClient find(long connectionId) {
+		return byId.get(connectionId);
+	}
+
+	/**
+	 * @return the number of registered connections.
+	 */
+	public int size() {
+		return byId.size();
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	/**
+	 * @return a new connection id.
+	 */
+	long nextId() {
+		return nextId.getAndIncrement();
+	}
+
+	/**
+	 * Adds a connection. Adding a connection twice has no effect.
+	 *
+	 * @param client
+	 *            the connection to add.
+	 */
+	void add(ConnectionToClient client) {
+		synchronized (byId) {
+			if (byId.putIfAbsent(client.getConnectionId(), client) == null)
+				snapshot = snapshot.inserted(client);
+		}
+	}
+
+	/**
+	 * Removes a connection. Removing an unknown connection has no effect.
+	 *
+	 * @param client
+	 *            the connection to remove.
+	 * @return true if the connection was registered.
+	 */
+	boolean remove(ConnectionToClient client) {
+		synchronized (byId) {
+			if (!byId.remove(client.getConnectionId(), client))
+				return false;
+
+			Snapshot current = snapshot;
+			snapshot = current.removed(current.search(client.getConnectionId()));
+			return true;
+		}
+	}
+
+	/**
+	 * @return a new array containing the registered connections.
+	 */
+	Thread[] toArray() {
+		ConnectionToClient[] connections = snapshot().connections;
+		Thread[] copy = new Thread[connections.length];
+		System.arraycopy(connections, 0, copy, 0, connections.length);
+		return copy;
+	}
+}
+// End of ConnectionRegistry class
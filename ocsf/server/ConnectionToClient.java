@@ -6,7 +6,19 @@ package ocsf.server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ocsf.common.Frames;
+import ocsf.common.MessageCodec;
+import ocsf.common.StreamResetPolicy;
+import ocsf.common.TimerWheel;
+import ocsf.common.VirtualThreads;
 
 /**
  * An instance of this class is created by the server when a client connects. It
@@ -25,6 +37,19 @@ import java.util.HashMap;
  * @version February 2001 (2.12)
  */
 public class ConnectionToClient extends Thread {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Size of the buffer the frames of a thread based connection are written
+	 * to before being sent together.
+	 */
+	private static final int	WRITE_BUFFER_SIZE	= 8192;
+
+	/**
+	 * Maximum number of frames written to a channel in one gathering write.
+	 */
+	private static final int	MAX_GATHERED_FRAMES	= 16;
+
 	// INSTANCE VARIABLES ***********************************************
 
 	/**
@@ -32,6 +57,11 @@ public class ConnectionToClient extends Thread {
 	 */
 	private AbstractServer		server;
 
+	/**
+	 * The id of this connection, unique for the server.
+	 */
+	private final long			connectionId;
+
 	/**
 	 * Sockets are used in the operating system as channels of communication
 	 * between two processes.
@@ -50,24 +80,224 @@ public class ConnectionToClient extends Thread {
 	 */
 	private ObjectOutputStream	output;
 
+	/**
+	 * Decides when the object stream going to the client is reset.
+	 */
+	private StreamResetPolicy	resetPolicy;
+
+	/**
+	 * Stream used to read frames from the client when it speaks the framed
+	 * protocol. Null for legacy object stream clients.
+	 */
+	private DataInputStream		frameInput;
+
+	/**
+	 * Stream used to write frames to the client when it speaks the framed
+	 * protocol. Null for legacy object stream clients.
+	 */
+	private OutputStream		frameOutput;
+
+	/**
+	 * The codec negotiated with a client speaking the framed protocol. Null
+	 * for legacy object stream clients, and until the handshake is done for
+	 * clients serviced by a reactor.
+	 */
+	private volatile MessageCodec	codec;
+
+	/**
+	 * True if the client proposed to unpack batches of frames. Set with the
+	 * codec.
+	 */
+	private volatile boolean	acceptsBatches;
+
+	/**
+	 * The non-blocking channel of the client when the connection is serviced
+	 * by a <code>ConnectionReactor</code> rather than by its own thread.
+	 */
+	private SocketChannel		channel;
+
+	/**
+	 * The reactor servicing the channel, if any.
+	 */
+	private ConnectionReactor	reactor;
+
+	/**
+	 * The selection key of the channel. Set by the reactor thread.
+	 */
+	private volatile SelectionKey	key;
+
+	/**
+	 * Bytes read from the channel that do not yet form a complete frame.
+	 */
+	private ByteBuffer			readBuffer;
+
+	/**
+	 * Lock serializing writes to the streams of the client, since messages
+	 * for the same client may be sent from several threads at once.
+	 */
+	private final Object		writeLock	= new Object();
+
+	/**
+	 * Messages waiting to be written, oldest first. Used by connections
+	 * serviced by a reactor, which wait for the channel to become writable,
+	 * and by thread based connections when the server has a send queue, which
+	 * are drained by a writer task. Also the monitor guarding the queue state.
+	 */
+	private final ArrayDeque<EncodedMessage>	sendQueue	= new ArrayDeque<EncodedMessage>();
+
+	/**
+	 * The frames being written to the channel with a single gathering write,
+	 * from <code>outgoingStart</code> to <code>outgoingEnd</code>. Frames
+	 * stay here until the channel took all of them.
+	 */
+	private ByteBuffer[]		outgoing;
+
+	/**
+	 * Index of the first frame in <code>outgoing</code> not entirely written.
+	 */
+	private int					outgoingStart;
+
+	/**
+	 * Index after the last frame in <code>outgoing</code>.
+	 */
+	private int					outgoingEnd;
+
+	/**
+	 * When each message of the send queue was queued, from
+	 * <code>System.nanoTime()</code>: a circular buffer parallel to the
+	 * queue, used to measure the time messages wait in it. Guarded by the
+	 * send queue lock.
+	 */
+	private long[]				enqueueTimes	= new long[16];
+
+	/**
+	 * Index of the time of the oldest queued message.
+	 */
+	private int					enqueueTimesHead;
+
+	/**
+	 * The maximum number of messages in the send queue, or 0 for writes
+	 * without a queue (thread based connections) or an unbounded queue
+	 * (connections serviced by a reactor).
+	 */
+	private final int			sendQueueCapacity;
+
+	/**
+	 * What to do when a message is sent while the send queue is full.
+	 */
+	private final int			overflowPolicy;
+
+	/**
+	 * True while a writer task is draining the send queue of a thread based
+	 * connection.
+	 */
+	private boolean				draining;
+
+	/**
+	 * The highest number of messages the send queue held so far.
+	 */
+	private int					peakSendQueueDepth;
+
+	/**
+	 * Bucket counts of the depth of the send queue when a message is added,
+	 * and of the time messages wait in it, as kept by
+	 * <code>ServerMetrics.SendStats</code>. Created with the first message
+	 * queued, and guarded by the send queue lock.
+	 */
+	private long[]				depthCounts, latencyCounts;
+
+	/**
+	 * The number of messages dropped because the send queue was full.
+	 */
+	private long				droppedMessages;
+
+	/**
+	 * The token buckets limiting how fast the client may send, or null if it
+	 * is not limited. Only used by the thread reading from the client.
+	 */
+	private final RateLimiter	limiter;
+
+	/**
+	 * What happens to a message the client sends too fast.
+	 */
+	private final int			rateLimitPolicy;
+
+	/**
+	 * The number of times the client exceeded its rate limit. Only written by
+	 * the thread reading from the client.
+	 */
+	private volatile long		rateLimitedMessages;
+
+	/**
+	 * True while reading from the channel is paused because the client sent
+	 * too fast. Guarded by the send queue lock, as the interest set is.
+	 */
+	private boolean				readPaused;
+
 	/**
 	 * Indicates if the thread is ready to stop. Set to true when closing of the
 	 * connection is initiated.
 	 */
-	private boolean				readyToStop;
+	private volatile boolean	readyToStop;
+
+	/**
+	 * Set until the handshake succeeds, fails or times out, whichever
+	 * happens first.
+	 */
+	private final AtomicBoolean	handshakePending	= new AtomicBoolean(true);
+
+	/**
+	 * The task closing the connection if the handshake takes too long, or
+	 * null.
+	 */
+	private volatile TimerWheel.Timeout	handshakeDeadline;
+
+	/**
+	 * When a frame was last read from the client, from
+	 * <code>System.nanoTime()</code>.
+	 */
+	private volatile long		lastRead;
+
+	/**
+	 * Set when the client is reaped for sending nothing for the heartbeat
+	 * timeout, so that the end of its input is reported as a disconnection
+	 * rather than an exception.
+	 */
+	private volatile boolean	heartbeatExpired;
+
+	/**
+	 * The next check that the client still sends heartbeats, or null if it
+	 * never sent any.
+	 */
+	private volatile TimerWheel.Timeout	heartbeatCheck;
+
+	/**
+	 * Information saved about the client, such as its login ID, at the index
+	 * of its key. Replaced by a larger copy when set, never modified in place,
+	 * so that reading it needs no lock. Used by the setAttribute and
+	 * getAttribute methods.
+	 */
+	private volatile Object[]	attributes	= new Object[0];
+
+	/**
+	 * Serializes the changes to the attributes.
+	 */
+	private final Object		attributeLock	= new Object();
 
 	/**
-	 * Map to save information about the client such as its login ID. The
-	 * initial size of the map is small since it is not expected that concrete
-	 * servers will want to store many different types of information about each
-	 * client. Used by the setInfo and getInfo methods.
+	 * Map to save information about the client by name, created when first
+	 * needed. Kept apart from the attributes, so that names chosen at run time
+	 * do not take a slot in every connection. Used by the setInfo and getInfo
+	 * methods, guarded by the attribute lock.
 	 */
-	private HashMap				savedInfo	= new HashMap(10);
+	private HashMap<String, Object>	savedInfo;
 
 	// CONSTRUCTORS *****************************************************
 
 	/**
-	 * Constructs a new connection to a client.
+	 * Constructs a new connection to a client and starts the thread reading
+	 * from it. The handshake is done by that thread, so that a client slow to
+	 * send its first bytes does not hold up the thread accepting connections.
 	 * 
 	 * @param group
 	 *            the thread groupSystem.out.println("Client at "+ client +
@@ -76,21 +306,82 @@ public class ConnectionToClient extends Thread {
 	 *            contains the client's socket.
 	 * @param server
 	 *            a reference to the server that created this instance
+	 * @param virtual
+	 *            true to run the read loop on a virtual thread instead of
+	 *            starting the thread of this instance.
 	 * @exception IOException
 	 *                if an I/O error occur when creating the connection.
 	 */
-	ConnectionToClient(ThreadGroup group, Socket clientSocket, AbstractServer server) throws IOException {
+	ConnectionToClient(ThreadGroup group, Socket clientSocket, AbstractServer server, boolean virtual)
+			throws IOException {
 		super(group, (Runnable) null);
 		// Initialize variables
 		this.clientSocket = clientSocket;
 		this.server = server;
+		this.connectionId = server.nextConnectionId();
+		this.sendQueueCapacity = server.getSendQueueCapacity();
+		this.overflowPolicy = server.getOverflowPolicy();
+		this.limiter = server.newRateLimiter();
+		this.rateLimitPolicy = server.getRateLimitPolicy();
 
-		clientSocket.setSoTimeout(0); // make sure timeout is infinite
+		try {
+			clientSocket.setSoTimeout(0); // make sure timeout is infinite
+		} catch (IOException ex) {
+			try {
+				closeAll();
+			} catch (Exception exc) {
+			}
+
+			throw ex; // Rethrow the exception.
+		}
+
+		readyToStop = false;
+
+		if (virtual) {
+			// The virtual thread has no group, so report uncaught exceptions
+			// the way the client thread group does
+			VirtualThreads.start(new Runnable() {
+				public void run() {
+					try {
+						ConnectionToClient.this.run();
+					} catch (Throwable exception) {
+						ConnectionToClient.this.server.clientException(ConnectionToClient.this, exception);
+					}
+				}
+			}, getName());
+		} else {
+			start(); // Start the thread waits for data from the socket
+		}
+	}
+
+	/**
+	 * Constructs a new connection to a client serviced by a reactor instead
+	 * of a thread of its own. The thread of this instance is never started.
+	 * The client must speak the framed protocol.
+	 *
+	 * @param channel
+	 *            the client's channel.
+	 * @param reactor
+	 *            the reactor that will service the channel.
+	 * @param server
+	 *            a reference to the server that created this instance
+	 * @exception IOException
+	 *                if an I/O error occur when creating the connection.
+	 */
+	ConnectionToClient(SocketChannel channel, ConnectionReactor reactor, AbstractServer server) throws IOException {
+		super("OCSF connection " + channel.socket().getRemoteSocketAddress());
+		this.channel = channel;
+		this.clientSocket = channel.socket();
+		this.reactor = reactor;
+		this.server = server;
+		this.connectionId = server.nextConnectionId();
+		this.sendQueueCapacity = server.getSendQueueCapacity();
+		this.overflowPolicy = server.getOverflowPolicy();
+		this.limiter = server.newRateLimiter();
+		this.rateLimitPolicy = server.getRateLimitPolicy();
 
-		// Initialize the objects streams
 		try {
-			input = new ObjectInputStream(clientSocket.getInputStream());
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
+			channel.configureBlocking(false);
 		} catch (IOException ex) {
 			try {
 				closeAll();
@@ -100,14 +391,20 @@ public class ConnectionToClient extends Thread {
 			throw ex; // Rethrow the exception.
 		}
 
+		readBuffer = ByteBuffer.allocate(8192);
+		outgoing = new ByteBuffer[MAX_GATHERED_FRAMES];
 		readyToStop = false;
-		start(); // Start the thread waits for data from the socket
+		reactor.register(this);
 	}
 
 	// INSTANCE METHODS *************************************************
 
 	/**
-	 * Sends an object to the client.
+	 * Sends an object to the client. If the server has a send queue, if the
+	 * connection is serviced by a reactor, or if broadcast batches are still
+	 * waiting to be written to it, the message may only be queued when this
+	 * method returns; what happens when the queue is full depends on
+	 * the overflow policy of the server.
 	 * 
 	 * @param msg
 	 *            the message to be sent.
@@ -115,19 +412,123 @@ public class ConnectionToClient extends Thread {
 	 *                if an I/O error occur when sending the message.
 	 */
 	final public void sendToClient(Object msg) throws IOException {
-		if (clientSocket == null || output == null)
+		if (msg instanceof EncodedMessage)
+			sendToClient((EncodedMessage) msg);
+		else
+			sendToClient(new EncodedMessage(msg));
+	}
+
+	/**
+	 * Sends an already wrapped message to the client. If the message was
+	 * encoded for another client, its frame is reused rather than serializing
+	 * the message again.
+	 * 
+	 * @param msg
+	 *            the message to be sent.
+	 * @exception IOException
+	 *                if an I/O error occur when sending the message.
+	 */
+	final public void sendToClient(EncodedMessage msg) throws IOException {
+		if (clientSocket == null)
+			throw new SocketException("socket does not exist");
+
+		if (channel != null && codec == null)
+			throw new SocketException("handshake not completed");
+
+		if (channel != null || sendQueueCapacity > 0 || isQueued()) {
+			if (codec != null)
+				msg.frame(codec); // encode on the caller's thread, not the writer's
+			enqueue(msg);
+		} else {
+			writeToStream(msg, true);
+		}
+	}
+
+	/**
+	 * Sends several already wrapped messages to the client at once. The
+	 * frames are written together, with a single gathering write for a
+	 * connection serviced by a reactor and a single flush otherwise, and are
+	 * not interleaved with messages sent concurrently by other threads. Like
+	 * <code>sendToClient(EncodedMessage)</code>, frames already encoded for
+	 * another client are reused.
+	 * 
+	 * @param msgs
+	 *            the messages to be sent.
+	 * @param off
+	 *            the index of the first message.
+	 * @param len
+	 *            the number of messages.
+	 * @exception IOException
+	 *                if an I/O error occur when sending the messages.
+	 */
+	final public void sendToClient(EncodedMessage[] msgs, int off, int len) throws IOException {
+		if (clientSocket == null)
+			throw new SocketException("socket does not exist");
+
+		if (channel != null && codec == null)
+			throw new SocketException("handshake not completed");
+
+		if (channel != null || sendQueueCapacity > 0 || isQueued()) {
+			if (codec != null) {
+				for (int i = off; i < off + len; i++)
+					msgs[i].frame(codec);
+			}
+			enqueue(msgs, off, len);
+		} else {
+			synchronized (writeLock) {
+				for (int i = off; i < off + len; i++)
+					writeToStream(msgs[i], false);
+				flushStream();
+			}
+		}
+	}
+
+	/**
+	 * Sends several already wrapped messages to the client without writing
+	 * them on the calling thread. Like <code>sendToClient</code>, except that
+	 * a thread based connection without a send queue gets them through a
+	 * writer task, in an unbounded queue, rather than written inline, so that
+	 * a slow client does not hold the caller up. Messages sent to the client
+	 * meanwhile are queued behind them to keep the order.
+	 * 
+	 * @param msgs
+	 *            the messages to be sent.
+	 * @param off
+	 *            the index of the first message.
+	 * @param len
+	 *            the number of messages.
+	 * @exception IOException
+	 *                if the connection is closed.
+	 */
+	final void queueToClient(EncodedMessage[] msgs, int off, int len) throws IOException {
+		if (channel != null || sendQueueCapacity > 0) {
+			sendToClient(msgs, off, len);
+			return;
+		}
+
+		if (clientSocket == null)
 			throw new SocketException("socket does not exist");
 
-		output.writeObject(msg);
+		if (codec != null) {
+			for (int i = off; i < off + len; i++)
+				msgs[i].frame(codec);
+		}
+		enqueue(msgs, off, len);
 	}
 
 	/**
 	 * Reset the output stream so we can use the same
 	 * buffer repeatedly. This would not normally be used, but is necessary
-    * in some circumstances when Java refuses to send data that it thinks has been sent.
+	 * in some circumstances when Java refuses to send data that it thinks has been sent.
 	 */
 	final public void forceResetAfterSend() throws IOException {
-      output.reset();
+		// Frames are self-contained, so only object streams keep a handle table
+		synchronized (writeLock) {
+			if (output != null) {
+				output.reset();
+				resetPolicy.wasReset();
+			}
+		}
 	}
 
 	/**
@@ -149,6 +550,100 @@ public class ConnectionToClient extends Thread {
 
 	// ACCESSING METHODS ------------------------------------------------
 
+	/**
+	 * Returns the id of this connection. Ids are unique for the server and
+	 * never change, so they can be used to refer to a client without keeping
+	 * the connection itself around.
+	 * 
+	 * @return the connection id.
+	 * @see ocsf.server.AbstractServer#getClientConnection(long)
+	 */
+	final public long getConnectionId() {
+		return connectionId;
+	}
+
+	/**
+	 * Returns the codec negotiated with the client.
+	 * 
+	 * @return the codec, or null if the client uses a legacy object stream.
+	 */
+	final public MessageCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Tells whether the client unpacks batches of frames, so that broadcasts
+	 * may be coalesced for it.
+	 * 
+	 * @return true if batches may be sent to the client.
+	 */
+	final boolean acceptsBatches() {
+		return acceptsBatches;
+	}
+
+	/**
+	 * Returns the number of messages waiting to be written to the client.
+	 * 
+	 * @return the depth of the send queue.
+	 */
+	final public int getSendQueueDepth() {
+		synchronized (sendQueue) {
+			return sendQueue.size() + (outgoingEnd - outgoingStart);
+		}
+	}
+
+	/**
+	 * Returns the highest number of messages that were waiting to be written
+	 * to the client at any one time.
+	 * 
+	 * @return the peak depth of the send queue.
+	 */
+	final public int getPeakSendQueueDepth() {
+		synchronized (sendQueue) {
+			return peakSendQueueDepth;
+		}
+	}
+
+	/**
+	 * Returns the histograms of the send queue of the client: how deep it was
+	 * when messages were added, and how long they waited in it. Only messages
+	 * that went through the queue are counted.
+	 * 
+	 * @return a copy of the histograms.
+	 */
+	final public ServerMetrics.SendStats getSendStats() {
+		synchronized (sendQueue) {
+			if (depthCounts == null)
+				return new ServerMetrics.SendStats(new long[ServerMetrics.SendStats.BUCKETS],
+						new long[ServerMetrics.SendStats.BUCKETS]);
+			return new ServerMetrics.SendStats(depthCounts.clone(), latencyCounts.clone());
+		}
+	}
+
+	/**
+	 * Returns the number of messages for the client that were dropped
+	 * because its send queue was full.
+	 * 
+	 * @return the number of dropped messages.
+	 */
+	final public long getDroppedMessageCount() {
+		synchronized (sendQueue) {
+			return droppedMessages;
+		}
+	}
+
+	/**
+	 * Returns the number of times the client sent faster than its rate limit
+	 * allows, whether it was throttled, its messages dropped or it was
+	 * disconnected.
+	 * 
+	 * @return the number of times the rate limit was exceeded.
+	 * @see ocsf.server.AbstractServer#setRateLimit(double, int, double, int, int)
+	 */
+	final public long getRateLimitedCount() {
+		return rateLimitedMessages;
+	}
+
 	/**
 	 * Returns the address of the client.
 	 * 
@@ -168,9 +663,44 @@ public class ConnectionToClient extends Thread {
 				+ clientSocket.getInetAddress().getHostAddress() + ")";
 	}
 
+	/**
+	 * Saves information about this client. Designed to be used by concrete
+	 * subclasses of AbstractServer. May be called by any thread; the value is
+	 * visible to every thread once the call returns.
+	 * 
+	 * @param key
+	 *            identifies the information.
+	 * @param value
+	 *            the information itself, or null to remove it.
+	 */
+	public <T> void setAttribute(AttributeKey<T> key, T value) {
+		synchronized (attributeLock) {
+			Object[] current = attributes;
+			Object[] changed = Arrays.copyOf(current, Math.max(current.length, key.index + 1));
+			changed[key.index] = value;
+			attributes = changed;
+		}
+	}
+
+	/**
+	 * Returns information about the client saved using setAttribute.
+	 * 
+	 * @param key
+	 *            identifies the information.
+	 * @return the information, or null if none was saved.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T getAttribute(AttributeKey<T> key) {
+		Object[] current = attributes;
+		return key.index < current.length ? (T) current[key.index] : null;
+	}
+
 	/**
 	 * Saves arbitrary information about this client. Designed to be used by
-	 * concrete subclasses of AbstractServer. Based on a hash map.
+	 * concrete subclasses of AbstractServer. Based on a hash map, separate
+	 * from the attributes: information saved here is not seen by
+	 * getAttribute, even with a key of the same name. Information read often
+	 * is better kept in an attribute.
 	 * 
 	 * @param infoType
 	 *            identifies the type of information
@@ -178,7 +708,11 @@ public class ConnectionToClient extends Thread {
 	 *            the information itself.
 	 */
 	public void setInfo(String infoType, Object info) {
-		savedInfo.put(infoType, info);
+		synchronized (attributeLock) {
+			if (savedInfo == null)
+				savedInfo = new HashMap<String, Object>(4);
+			savedInfo.put(infoType, info);
+		}
 	}
 
 	/**
@@ -189,7 +723,9 @@ public class ConnectionToClient extends Thread {
 	 *            identifies the type of information
 	 */
 	public Object getInfo(String infoType) {
-		return savedInfo.get(infoType);
+		synchronized (attributeLock) {
+			return savedInfo == null ? null : savedInfo.get(infoType);
+		}
 	}
 
 	// RUN METHOD -------------------------------------------------------
@@ -199,6 +735,24 @@ public class ConnectionToClient extends Thread {
 	 * read to the server. Not to be called.
 	 */
 	final public void run() {
+		try {
+			handshake();
+		} catch (IOException exception) {
+			if (!readyToStop) {
+				try {
+					closeAll();
+				} catch (Exception ex) {
+				}
+
+				server.clientException(this, exception);
+			}
+			return;
+		}
+
+		if (!endHandshake())
+			return; // timed out meanwhile, the socket is closed
+
+		server.registerConnection(this);
 		server.clientConnected(this);
 
 		// This loop reads the input stream and responds to messages
@@ -210,7 +764,26 @@ public class ConnectionToClient extends Thread {
 			while (!readyToStop) {
 				// This block waits until it reads a message from the client
 				// and then sends it for handling by the server
-				msg = input.readObject();
+				if (frameInput != null) {
+					int length = frameInput.readInt();
+					lastRead = System.nanoTime();
+					if (length == Frames.HEARTBEAT_LENGTH) {
+						heartbeatReceived();
+						continue;
+					}
+
+					Frames.checkLength(length);
+					byte[] payload = new byte[length];
+					frameInput.readFully(payload);
+					server.getMetrics().bytesIn.add(Frames.HEADER_LENGTH + length);
+					if (!admit(Frames.HEADER_LENGTH + length))
+						continue;
+					msg = codec.decode(payload, 0, length);
+				} else {
+					msg = input.readObject();
+					if (!admit(0))
+						continue;
+				}
 				server.receiveMessageFromClient(msg, this);
 			}
 		} catch (Exception exception) {
@@ -220,13 +793,232 @@ public class ConnectionToClient extends Thread {
 				} catch (Exception ex) {
 				}
 
-				server.clientException(this, exception);
+				if (heartbeatExpired)
+					server.clientDisconnected(this); // reaped, as close() would
+				else
+					server.clientException(this, exception);
 			}
+		} finally {
+			server.unregisterConnection(this);
 		}
 	}
 
 	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+	/**
+	 * Arranges for the connection to be closed if the handshake is not over
+	 * after some time. Called by the server once the connection is set up.
+	 * 
+	 * @param deadline
+	 *            the task closing the connection.
+	 */
+	void setHandshakeDeadline(TimerWheel.Timeout deadline) {
+		handshakeDeadline = deadline;
+		if (!handshakePending.get())
+			deadline.cancel(); // already over
+	}
+
+	/**
+	 * Closes the connection if the handshake is still not over. Called by the
+	 * server when the handshake timeout expires. No hook is called: the
+	 * server was never told about this client.
+	 */
+	void handshakeTimedOut() {
+		if (!handshakePending.compareAndSet(true, false))
+			return;
+
+		server.handshakeEnded(this, true);
+		readyToStop = true;
+		try {
+			closeAll();
+		} catch (Exception ex) {
+		}
+	}
+
+	/**
+	 * Applies the rate limit to a message read by the thread of the
+	 * connection. A throttled message is held back until the client is
+	 * within its limit again, which also stops reading from the socket
+	 * meanwhile.
+	 * 
+	 * @param size
+	 *            the size of the message in bytes, or 0 if unknown.
+	 * @return true if the message must be handled, false if it is dropped or
+	 *         the client disconnected.
+	 */
+	private boolean admit(int size) throws IOException {
+		long wait = rateLimit(size);
+		if (wait < 0)
+			return false;
+
+		while (wait > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			} catch (InterruptedException ex) {
+				throw new InterruptedIOException("interrupted while throttled");
+			}
+			wait = limiter.acquire(size);
+		}
+		return true;
+	}
+
+	/**
+	 * Takes the tokens for a message from the buckets of the client, and
+	 * counts and applies the policy if there are not enough of them. The
+	 * caller waits if the message is throttled.
+	 * 
+	 * @param size
+	 *            the size of the message in bytes, or 0 if unknown.
+	 * @return 0 if the message may be handled now, the time to wait in
+	 *         nanoseconds if it is throttled, or -1 if it is dropped or the
+	 *         client disconnected.
+	 */
+	private long rateLimit(int size) throws IOException {
+		if (limiter == null)
+			return 0;
+		long wait = limiter.acquire(size);
+		if (wait == 0)
+			return 0;
+
+		rateLimitedMessages++;
+		ServerMetrics metrics = server.getMetrics();
+		if (rateLimitPolicy == AbstractServer.RATE_LIMIT_THROTTLE) {
+			metrics.throttled.increment();
+			return wait;
+		}
+		if (rateLimitPolicy == AbstractServer.RATE_LIMIT_DROP) {
+			metrics.rateLimitDropped.increment();
+		} else {
+			metrics.rateLimitDisconnects.increment();
+			close(); // disconnect the flooding client
+		}
+		return -1;
+	}
+
+	/**
+	 * Answers a heartbeat of the client. The first one also starts checking
+	 * that the client keeps sending them, or anything else.
+	 */
+	private void heartbeatReceived() throws IOException {
+		if (heartbeatCheck == null)
+			scheduleHeartbeatCheck(server.getHeartbeatTimeout());
+
+		if (channel != null) {
+			synchronized (sendQueue) {
+				// Frames still to be written answer just as well
+				if (readyToStop || outgoingStart < outgoingEnd || !sendQueue.isEmpty())
+					return;
+				sendQueue.add(EncodedMessage.HEARTBEAT);
+				addEnqueueTime();
+				startWriting();
+			}
+		} else {
+			synchronized (writeLock) {
+				if (frameOutput == null)
+					throw new SocketException("socket does not exist");
+				frameOutput.write(Frames.heartbeat());
+				frameOutput.flush();
+			}
+		}
+	}
+
+	/**
+	 * Schedules a check that the client has sent something lately.
+	 * 
+	 * @param delay
+	 *            the delay before the check, in milliseconds, or 0 if dead
+	 *            clients are never reaped.
+	 */
+	private void scheduleHeartbeatCheck(long delay) {
+		if (delay <= 0 || readyToStop)
+			return;
+
+		heartbeatCheck = TimerWheel.shared().schedule(new Runnable() {
+			public void run() {
+				checkHeartbeat();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Reaps the connection if nothing came from the client for the heartbeat
+	 * timeout of the server, as happens when its machine vanished without
+	 * closing the connection. Runs on the thread of the timer wheel, so it
+	 * only shuts the input of the socket down: the thread or reactor reading
+	 * from the client then reaches the end of the stream, closes the
+	 * connection and calls <code>clientDisconnected</code>.
+	 */
+	private void checkHeartbeat() {
+		long timeout = server.getHeartbeatTimeout();
+		if (readyToStop || timeout <= 0)
+			return;
+
+		long silent = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastRead);
+		if (silent < timeout) {
+			scheduleHeartbeatCheck(timeout - silent);
+			return;
+		}
+
+		server.getMetrics().reaped.increment();
+		heartbeatExpired = true;
+		Socket socket = clientSocket;
+		try {
+			if (socket != null)
+				socket.shutdownInput();
+		} catch (IOException ex) {
+			// Already closed
+		}
+	}
+
+	/**
+	 * Marks the handshake as over, whether it succeeded or failed.
+	 * 
+	 * @return false if it was already over, in particular if it timed out.
+	 */
+	private boolean endHandshake() {
+		if (!handshakePending.compareAndSet(true, false))
+			return false;
+
+		TimerWheel.Timeout deadline = handshakeDeadline;
+		if (deadline != null)
+			deadline.cancel();
+		server.handshakeEnded(this, false);
+		return true;
+	}
+
+	/**
+	 * Initializes the streams of a connection serviced by its own thread,
+	 * using the first bytes sent by the client to choose between the framed
+	 * protocol and a legacy object stream. Called on that thread before the
+	 * connection is registered.
+	 */
+	private void handshake() throws IOException {
+		PushbackInputStream in = new PushbackInputStream(clientSocket.getInputStream(), Frames.HEADER_LENGTH);
+		byte[] header = new byte[Frames.HEADER_LENGTH];
+		int count = 0;
+		while (count < header.length) {
+			int read = in.read(header, count, header.length - count);
+			if (read < 0)
+				throw new EOFException("connection closed during handshake");
+			count += read;
+		}
+
+		if (Frames.getInt(header, 0) == Frames.MAGIC) {
+			frameInput = new DataInputStream(new BufferedInputStream(in));
+			frameOutput = new BufferedOutputStream(clientSocket.getOutputStream(), WRITE_BUFFER_SIZE);
+
+			int proposed = frameInput.readUnsignedByte();
+			byte[] ids = new byte[proposed];
+			frameInput.readFully(ids);
+			codec = negotiateCodec(ids, 0, proposed, frameOutput);
+		} else {
+			in.unread(header);
+			input = new ObjectInputStream(in);
+			resetPolicy = new StreamResetPolicy(server.getResetMessages(), server.getResetBytes());
+			output = new ObjectOutputStream(resetPolicy.track(clientSocket.getOutputStream()));
+		}
+	}
+
 	/**
 	 * Closes all connection to the server.
 	 * 
@@ -234,6 +1026,22 @@ public class ConnectionToClient extends Thread {
 	 *                if an I/O error occur when closing the connection.
 	 */
 	private void closeAll() throws IOException {
+		endHandshake();
+		TimerWheel.Timeout check = heartbeatCheck;
+		if (check != null)
+			check.cancel();
+		server.unregisterConnection(this);
+
+		synchronized (sendQueue) {
+			// Release the writers that are blocked on a full queue
+			sendQueue.clear();
+			enqueueTimesHead = 0;
+			if (outgoing != null)
+				Arrays.fill(outgoing, null);
+			outgoingStart = outgoingEnd = 0;
+			sendQueue.notifyAll();
+		}
+
 		try {
 			// Close the socket
 			if (clientSocket != null)
@@ -253,10 +1061,575 @@ public class ConnectionToClient extends Thread {
 			// when they are garbage collected.
 			output = null;
 			input = null;
+			frameInput = null;
+			frameOutput = null;
 			clientSocket = null;
 		}
 	}
 
+	/**
+	 * Registers the channel with the selector of the reactor. Called on the
+	 * reactor thread.
+	 *
+	 * @param selector
+	 *            the selector of the reactor.
+	 */
+	void attachTo(Selector selector) throws IOException {
+		if (readyToStop)
+			return;
+
+		synchronized (sendQueue) {
+			boolean pending = outgoingStart < outgoingEnd || !sendQueue.isEmpty();
+			int ops = pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+			key = channel.register(selector, ops, this);
+		}
+	}
+
+	/**
+	 * Reads whatever the channel has available and hands every complete frame
+	 * to the server. Called on the reactor thread when the channel is
+	 * readable.
+	 */
+	void readFromChannel() throws IOException, ClassNotFoundException {
+		if (channel.read(readBuffer) < 0)
+			throw new EOFException("connection closed by client");
+		lastRead = System.nanoTime();
+		processFrames();
+	}
+
+	/**
+	 * Hands every complete frame in the read buffer to the server, unless the
+	 * client is throttled: reading is then paused, and the frames left in the
+	 * buffer are handled when it resumes.
+	 */
+	private void processFrames() throws IOException, ClassNotFoundException {
+		readBuffer.flip();
+		int needed = 0;
+		long throttled = 0;
+
+		while (!readyToStop && readBuffer.remaining() >= Frames.HEADER_LENGTH) {
+			int position = readBuffer.position();
+
+			if (codec == null) {
+				if (readBuffer.getInt(position) != Frames.MAGIC)
+					throw new StreamCorruptedException("client does not use the framed protocol");
+				if (readBuffer.remaining() < Frames.HEADER_LENGTH + 1)
+					break;
+				int proposed = readBuffer.get(position + Frames.HEADER_LENGTH) & 0xFF;
+				if (readBuffer.remaining() < Frames.HEADER_LENGTH + 1 + proposed)
+					break;
+
+				readBuffer.position(position + Frames.HEADER_LENGTH + 1 + proposed);
+				codec = negotiateCodec(readBuffer.array(),
+						readBuffer.arrayOffset() + position + Frames.HEADER_LENGTH + 1, proposed, null);
+
+				if (!endHandshake())
+					return; // timed out meanwhile, the channel is closed
+
+				server.registerConnection(this);
+				server.clientConnected(this);
+				continue;
+			}
+
+			int length = readBuffer.getInt(position);
+			if (length == Frames.HEARTBEAT_LENGTH) {
+				readBuffer.position(position + Frames.HEADER_LENGTH);
+				heartbeatReceived();
+				continue;
+			}
+
+			Frames.checkLength(length);
+			if (readBuffer.remaining() < Frames.HEADER_LENGTH + length) {
+				needed = Frames.HEADER_LENGTH + length;
+				break;
+			}
+
+			long wait = rateLimit(Frames.HEADER_LENGTH + length);
+			if (wait > 0) {
+				throttled = wait; // keep the frame for later
+				break;
+			}
+
+			readBuffer.position(position + Frames.HEADER_LENGTH + length);
+			server.getMetrics().bytesIn.add(Frames.HEADER_LENGTH + length);
+			if (wait < 0)
+				continue; // dropped, or closed
+			Object msg = codec.decode(readBuffer.array(), readBuffer.arrayOffset() + position + Frames.HEADER_LENGTH,
+					length);
+			server.receiveMessageFromClient(msg, this);
+		}
+
+		if (readyToStop)
+			return; // closed while handling a message
+
+		readBuffer.compact();
+		if (needed > readBuffer.capacity()) {
+			// Grow the buffer so that the pending frame fits in it
+			ByteBuffer larger = ByteBuffer.allocate(needed);
+			readBuffer.flip();
+			larger.put(readBuffer);
+			readBuffer = larger;
+		}
+		if (throttled > 0)
+			pauseReading(throttled);
+	}
+
+	/**
+	 * Stops reading from the channel of a throttled client for some time, so
+	 * that TCP slows the client down rather than the server buffering what it
+	 * sends.
+	 * 
+	 * @param wait
+	 *            how long to pause, in nanoseconds.
+	 */
+	private void pauseReading(long wait) {
+		synchronized (sendQueue) {
+			readPaused = true;
+			SelectionKey k = key;
+			if (k != null && k.isValid())
+				k.interestOps(k.interestOps() & ~SelectionKey.OP_READ);
+		}
+
+		TimerWheel.shared().schedule(new Runnable() {
+			public void run() {
+				reactor.resume(ConnectionToClient.this);
+			}
+		}, wait, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Resumes reading from the channel after a pause, starting with the frames
+	 * already in the buffer. Called on the reactor thread.
+	 */
+	void resumeReading() throws IOException, ClassNotFoundException {
+		if (readyToStop)
+			return;
+
+		synchronized (sendQueue) {
+			readPaused = false;
+			SelectionKey k = key;
+			if (k != null && k.isValid())
+				k.interestOps(k.interestOps() | SelectionKey.OP_READ);
+		}
+		processFrames();
+	}
+
+	/**
+	 * Writes the queued frames until the queue is empty or the channel cannot
+	 * take more. Called on the reactor thread when the channel is writable.
+	 */
+	void flushToChannel() throws IOException {
+		synchronized (sendQueue) {
+			if (writeToChannel()) {
+				SelectionKey k = key;
+				if (k != null && k.isValid())
+					k.interestOps(readPaused ? 0 : SelectionKey.OP_READ);
+			}
+		}
+	}
+
+	/**
+	 * Called by the reactor when servicing the channel raised an exception.
+	 * Mirrors what the run method does for thread based connections.
+	 *
+	 * @param exception
+	 *            the exception raised.
+	 */
+	void channelFailed(Exception exception) {
+		if (!readyToStop) {
+			readyToStop = true;
+			try {
+				closeAll();
+			} catch (Exception ex) {
+			}
+
+			if (heartbeatExpired)
+				server.clientDisconnected(this); // reaped, as close() would
+			else
+				server.clientException(this, exception);
+		}
+	}
+
+	/**
+	 * Picks the codec proposed by the client that the server supports and
+	 * answers the handshake.
+	 *
+	 * @param ids
+	 *            the buffer holding the ids proposed by the client.
+	 * @param off
+	 *            offset of the first id.
+	 * @param count
+	 *            number of ids.
+	 * @param out
+	 *            the stream to answer on, or null to answer on the channel.
+	 * @return the codec of the connection.
+	 * @exception IOException
+	 *                if the server supports none of the proposed codecs.
+	 */
+	private MessageCodec negotiateCodec(byte[] ids, int off, int count, OutputStream out) throws IOException {
+		MessageCodec chosen = Frames.chooseCodec(ids, off, count, server.getCodecs());
+		byte[] reply = Frames.serverHandshake(chosen);
+		acceptsBatches = Frames.acceptsBatches(ids, off, count);
+
+		if (out != null) {
+			out.write(reply);
+			out.flush();
+		} else {
+			synchronized (sendQueue) {
+				outgoing[0] = ByteBuffer.wrap(reply);
+				outgoingStart = 0;
+				outgoingEnd = 1;
+				writeToChannel();
+			}
+		}
+
+		if (chosen == null)
+			throw new IOException("the client proposed no supported codec");
+		return chosen;
+	}
+
+	/**
+	 * Writes a message to the streams of a thread based connection.
+	 *
+	 * @param msg
+	 *            the message to write.
+	 * @param flush
+	 *            false to leave a frame in the buffer, because more frames
+	 *            follow and will be flushed with it.
+	 */
+	private void writeToStream(EncodedMessage msg, boolean flush) throws IOException {
+		MessageCodec c = codec;
+		byte[] frame = frameOutput != null && c != null ? msg.frame(c) : null;
+		synchronized (writeLock) {
+			if (frameOutput != null && frame != null) {
+				frameOutput.write(frame);
+				if (flush)
+					frameOutput.flush();
+				server.getMetrics().bytesOut.add(frame.length);
+			} else if (output != null) {
+				output.writeObject(msg.getMessage());
+				resetPolicy.written(output);
+			}
+			else
+				throw new SocketException("socket does not exist");
+		}
+		server.getMetrics().messagesOut.increment();
+	}
+
+	/**
+	 * Sends the frames left in the buffer of a thread based connection.
+	 */
+	private void flushStream() throws IOException {
+		synchronized (writeLock) {
+			if (frameOutput != null)
+				frameOutput.flush();
+		}
+	}
+
+	/**
+	 * Adds a message to the send queue, applying the overflow policy if the
+	 * queue is full, and makes sure somebody is going to write it: the
+	 * reactor for a channel, a writer task for a thread based connection.
+	 *
+	 * @param msg
+	 *            the message to queue.
+	 * @exception IOException
+	 *                if the connection is closed, or closed because of the
+	 *                overflow.
+	 */
+	private void enqueue(EncodedMessage msg) throws IOException {
+		boolean overflow;
+		synchronized (sendQueue) {
+			overflow = !offer(msg);
+			if (!overflow)
+				startWriting();
+		}
+
+		if (overflow)
+			overflowed();
+	}
+
+	/**
+	 * Adds several messages to the send queue at once, so that they are
+	 * written together.
+	 *
+	 * @param msgs
+	 *            the messages to queue.
+	 * @param off
+	 *            the index of the first message.
+	 * @param len
+	 *            the number of messages.
+	 * @exception IOException
+	 *                if the connection is closed, or closed because of the
+	 *                overflow.
+	 */
+	private void enqueue(EncodedMessage[] msgs, int off, int len) throws IOException {
+		boolean overflow = false;
+		synchronized (sendQueue) {
+			for (int i = off; i < off + len && !overflow; i++)
+				overflow = !offer(msgs[i]);
+			if (!overflow)
+				startWriting();
+		}
+
+		if (overflow)
+			overflowed();
+	}
+
+	/**
+	 * Adds a message to the send queue, applying the overflow policy if the
+	 * queue is full. Called with the send queue lock held.
+	 *
+	 * @param msg
+	 *            the message to queue.
+	 * @return false if the client must be disconnected because of the
+	 *         overflow.
+	 * @exception IOException
+	 *                if the connection is closed.
+	 */
+	private boolean offer(EncodedMessage msg) throws IOException {
+		if (sendQueueCapacity > 0 && sendQueue.size() >= sendQueueCapacity) {
+			if (overflowPolicy == AbstractServer.OVERFLOW_DROP_OLDEST) {
+				sendQueue.poll();
+				pollEnqueueTime();
+				droppedMessages++;
+				server.getMetrics().dropped.increment();
+			} else if (overflowPolicy == AbstractServer.OVERFLOW_BLOCK) {
+				try {
+					while (!readyToStop && sendQueue.size() >= sendQueueCapacity) {
+						// The caller may be the reactor of this channel, which
+						// cannot flush while waiting, so flush from here too
+						startWriting();
+						if (sendQueue.size() >= sendQueueCapacity)
+							sendQueue.wait(channel != null ? 10 : 0);
+					}
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted while waiting for the send queue");
+				}
+			} else {
+				return false;
+			}
+		}
+
+		if (readyToStop)
+			throw new SocketException("socket does not exist");
+
+		sendQueue.add(msg);
+		addEnqueueTime();
+		if (sendQueue.size() > peakSendQueueDepth)
+			peakSendQueueDepth = sendQueue.size();
+		server.getMetrics().sendQueueDepth.record(sendQueue.size());
+		if (depthCounts == null) {
+			depthCounts = new long[ServerMetrics.SendStats.BUCKETS];
+			latencyCounts = new long[ServerMetrics.SendStats.BUCKETS];
+		}
+		depthCounts[ServerMetrics.SendStats.bucketOf(sendQueue.size())]++;
+		return true;
+	}
+
+	/**
+	 * Records the time a message is added to the send queue. Called with the
+	 * send queue lock held, after adding the message.
+	 */
+	private void addEnqueueTime() {
+		int size = sendQueue.size();
+		if (size > enqueueTimes.length) {
+			long[] larger = new long[enqueueTimes.length * 2];
+			for (int i = 0; i < size - 1; i++)
+				larger[i] = enqueueTimes[(enqueueTimesHead + i) % enqueueTimes.length];
+			enqueueTimes = larger;
+			enqueueTimesHead = 0;
+		}
+		enqueueTimes[(enqueueTimesHead + size - 1) % enqueueTimes.length] = System.nanoTime();
+	}
+
+	/**
+	 * Forgets the time of the oldest message of the send queue, once it is
+	 * taken out of the queue. Called with the send queue lock held.
+	 *
+	 * @return the time the message waited in the queue, in nanoseconds.
+	 */
+	private long pollEnqueueTime() {
+		long queued = enqueueTimes[enqueueTimesHead];
+		enqueueTimesHead = (enqueueTimesHead + 1) % enqueueTimes.length;
+		return System.nanoTime() - queued;
+	}
+
+	/**
+	 * Takes the enqueue time of the message at the head of the send queue,
+	 * which is being sent, and records how long it waited. Called with the
+	 * send queue lock held.
+	 */
+	private void recordSent() {
+		long waited = pollEnqueueTime();
+		server.getMetrics().sendLatency.record(waited);
+		latencyCounts[ServerMetrics.SendStats.bucketOf(waited)]++;
+	}
+
+	/**
+	 * Waits until the messages queued for the client are written, or the
+	 * connection is closed, or a deadline passes. Called by the server before
+	 * it closes the connection.
+	 *
+	 * @param deadline
+	 *            the end of the wait, from <code>System.nanoTime()</code>.
+	 */
+	void awaitSent(long deadline) {
+		synchronized (sendQueue) {
+			try {
+				while (!readyToStop && (draining || !sendQueue.isEmpty() || outgoingStart < outgoingEnd)) {
+					long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+					if (left <= 0)
+						return;
+					// Reactors do not notify, so look again every so often
+					sendQueue.wait(Math.min(left, 10));
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return true if messages of a thread based connection without a send
+	 *         queue are waiting to be written by a writer task, so that later
+	 *         ones must be queued behind them.
+	 */
+	private boolean isQueued() {
+		synchronized (sendQueue) {
+			return draining || !sendQueue.isEmpty();
+		}
+	}
+
+	/**
+	 * Makes sure the queued messages are going to be written. Called with the
+	 * send queue lock held.
+	 */
+	private void startWriting() throws IOException {
+		if (channel != null) {
+			// Write right away if possible, the reactor finishes the job
+			if (!writeToChannel()) {
+				SelectionKey k = key;
+				if (k != null && k.isValid()) {
+					k.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | SelectionKey.OP_WRITE);
+					reactor.wakeup();
+				}
+			}
+		} else if (!draining && !sendQueue.isEmpty()) {
+			draining = true;
+			server.startWriter(new Runnable() {
+				public void run() {
+					drainSendQueue();
+				}
+			}, getName());
+		}
+	}
+
+	/**
+	 * Disconnects a client whose send queue overflowed.
+	 *
+	 * @exception IOException
+	 *                always, to tell the sender.
+	 */
+	private void overflowed() throws IOException {
+		countDroppedMessage();
+		close(); // disconnect the slow client
+		throw new IOException("send queue of " + this + " overflowed");
+	}
+
+	/**
+	 * Counts a message dropped when the client is disconnected.
+	 */
+	private void countDroppedMessage() {
+		synchronized (sendQueue) {
+			droppedMessages++;
+		}
+		server.getMetrics().dropped.increment();
+	}
+
+	/**
+	 * Writes as much of the send queue to the channel as the channel accepts,
+	 * up to MAX_GATHERED_FRAMES frames at a time. Called with the send queue
+	 * lock held.
+	 *
+	 * @return true if everything was written.
+	 */
+	private boolean writeToChannel() throws IOException {
+		while (true) {
+			if (outgoingStart == outgoingEnd) {
+				outgoingStart = outgoingEnd = 0;
+				EncodedMessage msg;
+				ServerMetrics metrics = server.getMetrics();
+				while (outgoingEnd < outgoing.length && (msg = sendQueue.poll()) != null) {
+					recordSent();
+					byte[] frame = msg.frame(codec);
+					outgoing[outgoingEnd++] = ByteBuffer.wrap(frame);
+					metrics.messagesOut.increment();
+					metrics.bytesOut.add(frame.length);
+				}
+				if (outgoingEnd == 0)
+					return true;
+				sendQueue.notifyAll();
+			}
+
+			channel.write(outgoing, outgoingStart, outgoingEnd - outgoingStart);
+			while (outgoingStart < outgoingEnd && !outgoing[outgoingStart].hasRemaining())
+				outgoing[outgoingStart++] = null;
+			if (outgoingStart < outgoingEnd)
+				return false;
+		}
+	}
+
+	/**
+	 * Writes the send queue of a thread based connection to its streams until
+	 * the queue is empty. Runs as a writer task, at most one at a time for a
+	 * given connection, so the order of the messages is kept. The frames are
+	 * flushed only once the queue is empty, so that a burst of messages is
+	 * sent together.
+	 */
+	private void drainSendQueue() {
+		try {
+			while (true) {
+				EncodedMessage msg;
+				synchronized (sendQueue) {
+					msg = sendQueue.poll();
+					if (msg != null) {
+						recordSent();
+						sendQueue.notifyAll();
+					}
+				}
+
+				if (msg == null) {
+					flushStream();
+					synchronized (sendQueue) {
+						if (sendQueue.isEmpty()) {
+							draining = false;
+							sendQueue.notifyAll();
+							return;
+						}
+					}
+					continue;
+				}
+
+				writeToStream(msg, false);
+			}
+		} catch (Exception exception) {
+			synchronized (sendQueue) {
+				draining = false;
+			}
+			if (!readyToStop) {
+				readyToStop = true;
+				try {
+					closeAll();
+				} catch (Exception ex) {
+				}
+
+				server.clientException(this, exception);
+			}
+		}
+	}
+
 	/**
 	 * This method is called by garbage collection.
 	 */
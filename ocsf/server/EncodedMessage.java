@@ -0,0 +1,162 @@
+package ocsf.server;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import ocsf.common.Frames;
+import ocsf.common.MessageCodec;
+
+/**
+ * A message together with its encoded frames. A frame is computed the first
+ * time a framed connection using a given codec needs it and then shared,
+ * unchanged, by every connection using the same codec, so broadcasting a
+ * message to many clients encodes it only once per codec.
+ * <p>
+ * Connections using a legacy object stream cannot use the frame and write the
+ * original message instead.
+ * <p>
+ * A batch is an encoded message made of several others, whose frame is a
+ * batch frame holding theirs. Batches are only sent to clients that unpack
+ * them.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#sendToAllClients(Object)
+ * @see ocsf.server.ConnectionToClient#sendToClient(EncodedMessage)
+ */
+public final class EncodedMessage {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The frames of a message that was not encoded yet.
+	 */
+	private static final byte[][]	NO_FRAMES	= new byte[0][];
+
+	/**
+	 * A heartbeat, queued like a message by connections that answer one.
+	 * Its frame is the same whatever the codec.
+	 */
+	static final EncodedMessage		HEARTBEAT	= new EncodedMessage(null);
+
+	static {
+		byte[][] frames = new byte[256][];
+		Arrays.fill(frames, Frames.heartbeat());
+		HEARTBEAT.frames = frames;
+	}
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The original message.
+	 */
+	private final Object	message;
+
+	/**
+	 * The messages of a batch, or null if this is a single message.
+	 */
+	private final EncodedMessage[]	parts;
+
+	/**
+	 * The encoded frames, length prefix included, indexed by codec id. Null
+	 * entries have not been needed yet. Copied rather than modified when a
+	 * frame is added, and frames are never modified once set.
+	 */
+	private volatile byte[][]	frames	= NO_FRAMES;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Wraps a message. Encoding is deferred until a connection needs it.
+	 *
+	 * @param message
+	 *            the message.
+	 */
+	public EncodedMessage(Object message) {
+		this.message = message;
+		this.parts = null;
+	}
+
+	/**
+	 * Constructs a batch.
+	 *
+	 * @param parts
+	 *            the messages of the batch, not copied.
+	 */
+	private EncodedMessage(EncodedMessage[] parts) {
+		this.message = parts;
+		this.parts = parts;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Wraps several messages into a batch, sent as a single frame.
+	 *
+	 * @param msgs
+	 *            the messages.
+	 * @param off
+	 *            the index of the first message.
+	 * @param len
+	 *            the number of messages, at most
+	 *            <code>Frames.MAX_BATCH_COUNT</code>.
+	 * @return the batch.
+	 */
+	static EncodedMessage batch(EncodedMessage[] msgs, int off, int len) {
+		return new EncodedMessage(Arrays.copyOfRange(msgs, off, off + len));
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	/**
+	 * @return the original message.
+	 */
+	public Object getMessage() {
+		return message;
+	}
+
+	/**
+	 * Returns the frame for a codec, encoding the message if no connection
+	 * using this codec did so yet. Two threads may race to encode the same
+	 * message; both produce identical bytes, so it does not matter which
+	 * result is kept. The returned array must not be modified.
+	 *
+	 * @param codec
+	 *            the codec of the connection.
+	 * @return the frame, length prefix included.
+	 * @exception IOException
+	 *                if the codec cannot encode the message.
+	 */
+	byte[] frame(MessageCodec codec) throws IOException {
+		int id = codec.getId();
+		byte[][] cache = frames;
+		if (id < cache.length && cache[id] != null)
+			return cache[id];
+
+		byte[] encoded;
+		if (parts == null) {
+			encoded = Frames.encode(message, codec);
+		} else {
+			byte[][] partFrames = new byte[parts.length][];
+			for (int i = 0; i < parts.length; i++)
+				partFrames[i] = parts[i].frame(codec);
+			encoded = Frames.batch(partFrames, parts.length);
+		}
+		synchronized (this) {
+			byte[][] updated = Arrays.copyOf(frames, Math.max(frames.length, id + 1));
+			updated[id] = encoded;
+			frames = updated;
+		}
+		return encoded;
+	}
+
+	/**
+	 * Returns a description of the message.
+	 *
+	 * @return the description.
+	 */
+	public String toString() {
+		return parts == null ? String.valueOf(message) : Arrays.toString(parts);
+	}
+}
+// End of EncodedMessage class
@@ -0,0 +1,150 @@
+package ocsf.server;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The most recent messages sent to a group of clients, kept so that they can
+ * be replayed to a client joining the group later. The history is a ring
+ * buffer of fixed capacity: adding a message overwrites the oldest one once
+ * the buffer is full, and allocates nothing.
+ * <p>
+ * Messages are kept as <code>EncodedMessage</code> instances, so replaying
+ * them reuses the frames encoded when they were first sent instead of
+ * serializing them again.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.ConnectionToClient#sendToClient(EncodedMessage[], int,
+ *      int)
+ */
+public final class MessageHistory {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The array each thread copies a history into before replaying it, grown
+	 * to the largest capacity replayed so far. Messages are copied under the
+	 * lock of the history but sent after releasing it, so that a client slow
+	 * to take them does not hold up the room; reusing the array keeps replays
+	 * from allocating.
+	 */
+	private static final ThreadLocal<EncodedMessage[]>	replayBuffer	= new ThreadLocal<EncodedMessage[]>();
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The messages. The oldest is at <code>next</code> once the buffer is
+	 * full.
+	 */
+	private final EncodedMessage[]	messages;
+
+	/**
+	 * Where the next message goes.
+	 */
+	private int						next;
+
+	/**
+	 * The number of messages in the buffer.
+	 */
+	private int						count;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs an empty history.
+	 *
+	 * @param capacity
+	 *            the number of messages kept.
+	 */
+	public MessageHistory(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive");
+		messages = new EncodedMessage[capacity];
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Adds a message, forgetting the oldest one if the history is full.
+	 *
+	 * @param msg
+	 *            the message.
+	 */
+	public synchronized void add(EncodedMessage msg) {
+		messages[next] = msg;
+		next = (next + 1) % messages.length;
+		if (count < messages.length)
+			count++;
+	}
+
+	/**
+	 * Copies the messages of the history, oldest first.
+	 *
+	 * @param into
+	 *            the array receiving the messages; at most
+	 *            <code>into.length</code> of the most recent messages are
+	 *            copied.
+	 * @return the number of messages copied.
+	 */
+	public synchronized int copyTo(EncodedMessage[] into) {
+		int n = Math.min(count, into.length);
+		int first = next - n;
+		if (first < 0)
+			first += messages.length;
+
+		int tail = Math.min(n, messages.length - first);
+		System.arraycopy(messages, first, into, 0, tail);
+		System.arraycopy(messages, 0, into, tail, n - tail);
+		return n;
+	}
+
+	/**
+	 * Sends the messages of the history to a client, oldest first, in a
+	 * single batch.
+	 *
+	 * @param client
+	 *            the connection of the client.
+	 * @exception IOException
+	 *                if an I/O error occur when sending the messages.
+	 */
+	public void replayTo(ConnectionToClient client) throws IOException {
+		EncodedMessage[] batch = replayBuffer.get();
+		if (batch == null || batch.length < messages.length) {
+			batch = new EncodedMessage[messages.length];
+			replayBuffer.set(batch);
+		}
+
+		int n = copyTo(batch);
+		try {
+			if (n > 0)
+				client.sendToClient(batch, 0, n);
+		} finally {
+			Arrays.fill(batch, 0, n, null); // do not keep the messages alive
+		}
+	}
+
+	/**
+	 * @return the number of messages in the history.
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * @return the maximum number of messages kept.
+	 */
+	public int capacity() {
+		return messages.length;
+	}
+
+	/**
+	 * Forgets every message.
+	 */
+	public synchronized void clear() {
+		Arrays.fill(messages, null);
+		next = 0;
+		count = 0;
+	}
+}
+// End of MessageHistory class
@@ -0,0 +1,620 @@
+package ocsf.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import ocsf.common.Codecs;
+import ocsf.common.MessageCodec;
+
+/**
+ * A durable, append-only log of messages. Each message is a record numbered
+ * by its offset, starting at 0, and can be read back by offset.
+ * <p>
+ * The log is a directory of segment files, named after the offset of their
+ * first record. A segment has a data file holding the records, each being
+ * the frame of the message as it travels on the wire (a 4 byte length
+ * followed by the payload produced by the codec of the log), and an index
+ * file holding, for each record, the position at which it ends in the data
+ * file and a CRC-32 checksum of its frame. Reading a record therefore costs
+ * two lookups instead of a scan. Both
+ * files are memory mapped at their full size when the segment is created,
+ * and a new segment is started when either is full.
+ * <p>
+ * Appending only copies the record to the mapped file; a background thread
+ * forces the files to the disk every so often, so many appends share the
+ * cost of one sync. {@link #sync()} waits for the next sync, for callers
+ * that need to know that their records are on disk.
+ * <p>
+ * The pages of a mapped file may reach the disk in any order, so after a
+ * crash an index entry can be on disk while its record is not, or be lost
+ * while later ones are kept. When a log is reopened, each segment is
+ * therefore scanned from its first record, and only the records whose
+ * length and checksum match their index entry, up to the first that does
+ * not, are kept. The rest of the segment is reused for new records, and the
+ * segments after one that lost records are deleted.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class MessageLog {
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A data file and its index.
+	 */
+	private static final class Segment {
+		/**
+		 * Offset of the first record of the segment.
+		 */
+		final long				baseOffset;
+
+		/**
+		 * The records.
+		 */
+		final MappedByteBuffer	data;
+
+		/**
+		 * For each record, the position at which it ends in the data and the
+		 * checksum of its frame, as two 4 byte ints. Unused entries are 0.
+		 */
+		final MappedByteBuffer	index;
+
+		/**
+		 * Number of records in the segment. Only used by the appender.
+		 */
+		int						count;
+
+		/**
+		 * Number of bytes of the data in use. Only used by the appender.
+		 */
+		int						position;
+
+		/**
+		 * Opens a segment, creating its files if they do not exist.
+		 *
+		 * @param directory
+		 *            the directory of the log.
+		 * @param baseOffset
+		 *            the offset of the first record.
+		 * @param dataCapacity
+		 *            the size of a new data file.
+		 * @param indexCapacity
+		 *            the number of entries of a new index file.
+		 */
+		Segment(File directory, long baseOffset, int dataCapacity, int indexCapacity) throws IOException {
+			this.baseOffset = baseOffset;
+			data = map(new File(directory, fileName(baseOffset, DATA_SUFFIX)), dataCapacity);
+			index = map(new File(directory, fileName(baseOffset, INDEX_SUFFIX)), indexCapacity * ENTRY_SIZE);
+
+			// Keep the records that check out, up to the first that does not
+			CRC32 checksum = new CRC32();
+			int entries = index.capacity() / ENTRY_SIZE;
+			while (count < entries && isValid(count, checksum))
+				count++;
+			position = count == 0 ? 0 : index.getInt((count - 1) * ENTRY_SIZE);
+
+			// Clear what is left of the index, so that an entry that made it
+			// to the disk without its record is not taken for a new one
+			for (int i = count * ENTRY_SIZE; i < index.capacity(); i += 4) {
+				if (index.getInt(i) != 0)
+					index.putInt(i, 0);
+			}
+		}
+
+		/**
+		 * Checks a record against its index entry.
+		 *
+		 * @param number
+		 *            the number of the record in the segment; the records
+		 *            before it are valid.
+		 * @param checksum
+		 *            a checksum to compute with.
+		 * @return true if the record is complete.
+		 */
+		private boolean isValid(int number, CRC32 checksum) {
+			int start = number == 0 ? 0 : index.getInt((number - 1) * ENTRY_SIZE);
+			int end = index.getInt(number * ENTRY_SIZE);
+			if (end - start < 4 || end > data.capacity() || data.getInt(start) != end - start - 4)
+				return false;
+
+			ByteBuffer view = data.duplicate();
+			view.position(start);
+			view.limit(end);
+			checksum.reset();
+			checksum.update(view);
+			return (int) checksum.getValue() == index.getInt(number * ENTRY_SIZE + 4);
+		}
+
+		/**
+		 * @return true if a record of the given size cannot be added.
+		 */
+		boolean isFull(int size) {
+			return position + size > data.capacity() || count == index.capacity() / ENTRY_SIZE;
+		}
+
+		/**
+		 * Copies a record into a new array.
+		 *
+		 * @param number
+		 *            the number of the record in the segment.
+		 * @return the frame of the record, length prefix included.
+		 */
+		byte[] read(int number) {
+			int start = number == 0 ? 0 : index.getInt((number - 1) * ENTRY_SIZE);
+			int end = index.getInt(number * ENTRY_SIZE);
+
+			byte[] frame = new byte[end - start];
+			ByteBuffer view = data.duplicate();
+			view.position(start);
+			view.get(frame);
+			return frame;
+		}
+
+		/**
+		 * Forces the segment to the disk, data first.
+		 */
+		void force() {
+			data.force();
+			index.force();
+		}
+
+		/**
+		 * Maps a file, extending it to the given size if it is smaller.
+		 */
+		private static MappedByteBuffer map(File file, int size) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				FileChannel channel = raf.getChannel();
+				long length = Math.max(size, channel.size());
+				return channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+			} finally {
+				raf.close(); // the mapping stays valid
+			}
+		}
+	}
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Default size of the data file of a segment.
+	 */
+	public static final int		DEFAULT_SEGMENT_SIZE	= 64 * 1024 * 1024;
+
+	/**
+	 * Default time between two syncs, in milliseconds.
+	 */
+	public static final long	DEFAULT_SYNC_INTERVAL	= 200;
+
+	/**
+	 * Suffix of the data files.
+	 */
+	private static final String	DATA_SUFFIX				= ".log";
+
+	/**
+	 * Suffix of the index files.
+	 */
+	private static final String	INDEX_SUFFIX			= ".idx";
+
+	/**
+	 * Size of an index entry: the end position and checksum of a record.
+	 */
+	private static final int	ENTRY_SIZE				= 8;
+
+	/**
+	 * Smallest average record size the index of a segment is sized for.
+	 */
+	private static final int	MIN_AVERAGE_RECORD		= 32;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The directory holding the segments.
+	 */
+	private final File			directory;
+
+	/**
+	 * The codec used to encode the records.
+	 */
+	private final MessageCodec	codec;
+
+	/**
+	 * The size of the data file of new segments.
+	 */
+	private final int			segmentSize;
+
+	/**
+	 * Time between two syncs, in milliseconds.
+	 */
+	private final long			syncInterval;
+
+	/**
+	 * The segments, oldest first, the last one being appended to. Replaced
+	 * rather than modified when a segment is added.
+	 */
+	private volatile Segment[]	segments;
+
+	/**
+	 * Offset of the next record. Written after the record, so that readers
+	 * never see a record before it is complete.
+	 */
+	private volatile long		endOffset;
+
+	/**
+	 * Offset up to which records are known to be on disk.
+	 */
+	private long				durableOffset;
+
+	/**
+	 * Set when a caller waits for a sync.
+	 */
+	private boolean				syncRequested;
+
+	/**
+	 * Set when the log is closed.
+	 */
+	private volatile boolean	closed;
+
+	/**
+	 * Monitor for the state of the syncs.
+	 */
+	private final Object		syncLock	= new Object();
+
+	/**
+	 * The thread syncing the log.
+	 */
+	private final Thread		syncer;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Opens the log of a directory, with the default segment size and sync
+	 * interval. Records are encoded with the serialization codec.
+	 *
+	 * @param directory
+	 *            the directory of the log, created if it does not exist.
+	 * @exception IOException
+	 *                if the log cannot be opened.
+	 */
+	public MessageLog(File directory) throws IOException {
+		this(directory, Codecs.SERIALIZATION, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_INTERVAL);
+	}
+
+	/**
+	 * Opens the log of a directory. Existing segments are kept and new
+	 * records are appended after theirs.
+	 *
+	 * @param directory
+	 *            the directory of the log, created if it does not exist.
+	 * @param codec
+	 *            the codec used to encode the records. A log must always be
+	 *            opened with the same codec.
+	 * @param segmentSize
+	 *            the size of the data file of new segments.
+	 * @param syncInterval
+	 *            the time between two syncs, in milliseconds.
+	 * @exception IOException
+	 *                if the log cannot be opened.
+	 */
+	public MessageLog(File directory, MessageCodec codec, int segmentSize, long syncInterval) throws IOException {
+		if (segmentSize < MIN_AVERAGE_RECORD || syncInterval <= 0)
+			throw new IllegalArgumentException("invalid segment size or sync interval");
+
+		this.directory = directory;
+		this.codec = codec;
+		this.segmentSize = segmentSize;
+		this.syncInterval = syncInterval;
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("cannot create " + directory);
+
+		// Reopen the existing segments
+		File[] files = directory.listFiles();
+		long[] bases = new long[files.length];
+		int found = 0;
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			if (name.endsWith(DATA_SUFFIX)) {
+				try {
+					bases[found] = Long.parseLong(name.substring(0, name.length() - DATA_SUFFIX.length()));
+					found++;
+				} catch (NumberFormatException ex) {
+				}
+			}
+		}
+		Arrays.sort(bases, 0, found);
+
+		if (found == 0) {
+			segments = new Segment[] { newSegment(0) };
+		} else {
+			// A segment must start where the previous one ends; the ones after
+			// a gap hold records that can no longer be reached by offset
+			int kept = 1;
+			segments = new Segment[found];
+			segments[0] = newSegment(bases[0]);
+			while (kept < found && bases[kept] == segments[kept - 1].baseOffset + segments[kept - 1].count) {
+				segments[kept] = newSegment(bases[kept]);
+				kept++;
+			}
+			for (int i = kept; i < found; i++) {
+				new File(directory, fileName(bases[i], DATA_SUFFIX)).delete();
+				new File(directory, fileName(bases[i], INDEX_SUFFIX)).delete();
+			}
+			if (kept < found)
+				segments = Arrays.copyOf(segments, kept);
+		}
+		Segment last = segments[segments.length - 1];
+		endOffset = last.baseOffset + last.count;
+		durableOffset = endOffset;
+
+		syncer = new Thread("OCSF log sync " + directory) {
+			public void run() {
+				syncLoop();
+			}
+		};
+		syncer.setDaemon(true);
+		syncer.start();
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Appends a message to the log. The record is readable as soon as this
+	 * method returns, and on disk after the next sync.
+	 *
+	 * @param msg
+	 *            the message.
+	 * @return the offset of the record.
+	 * @exception IOException
+	 *                if the message cannot be encoded or the log is closed.
+	 */
+	public long append(Object msg) throws IOException {
+		return append(msg instanceof EncodedMessage ? (EncodedMessage) msg : new EncodedMessage(msg));
+	}
+
+	/**
+	 * Appends an already wrapped message to the log. If the message was
+	 * encoded for a client using the codec of the log, the same frame is
+	 * written.
+	 *
+	 * @param msg
+	 *            the message.
+	 * @return the offset of the record.
+	 * @exception IOException
+	 *                if the message cannot be encoded or the log is closed.
+	 */
+	public long append(EncodedMessage msg) throws IOException {
+		byte[] frame = msg.frame(codec);
+		CRC32 checksum = new CRC32();
+		checksum.update(frame, 0, frame.length);
+
+		synchronized (this) {
+			if (closed)
+				throw new IOException("log closed");
+
+			Segment active = segments[segments.length - 1];
+			if (active.isFull(frame.length)) {
+				if (frame.length > segmentSize)
+					throw new IOException("message larger than a segment");
+				active = roll();
+			}
+
+			active.data.position(active.position);
+			active.data.put(frame);
+			active.position += frame.length;
+			active.index.putInt(active.count * ENTRY_SIZE + 4, (int) checksum.getValue());
+			active.index.putInt(active.count * ENTRY_SIZE, active.position);
+			active.count++;
+
+			long offset = endOffset;
+			endOffset = offset + 1;
+			return offset;
+		}
+	}
+
+	/**
+	 * Reads a record.
+	 *
+	 * @param offset
+	 *            the offset of the record.
+	 * @return the message.
+	 * @exception IOException
+	 *                if there is no such record or it cannot be decoded.
+	 */
+	public Object read(long offset) throws IOException, ClassNotFoundException {
+		byte[] frame = readFrame(offset);
+		return codec.decode(frame, 4, frame.length - 4);
+	}
+
+	/**
+	 * Reads the frame of a record, as it would be sent to a client using the
+	 * codec of the log.
+	 *
+	 * @param offset
+	 *            the offset of the record.
+	 * @return the frame, length prefix included.
+	 * @exception IOException
+	 *                if there is no such record.
+	 */
+	public byte[] readFrame(long offset) throws IOException {
+		if (offset < getStartOffset() || offset >= endOffset)
+			throw new IOException("no record at offset " + offset);
+
+		Segment[] current = segments;
+		int low = 0, high = current.length - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (current[middle].baseOffset <= offset)
+				low = middle;
+			else
+				high = middle - 1;
+		}
+		return current[low].read((int) (offset - current[low].baseOffset));
+	}
+
+	/**
+	 * Waits until every record appended before the call is on disk. Callers
+	 * waiting at the same time share a single sync.
+	 *
+	 * @exception IOException
+	 *                if the log is closed before the records are synced.
+	 */
+	public void sync() throws IOException {
+		long target = endOffset;
+		synchronized (syncLock) {
+			syncRequested = true;
+			syncLock.notifyAll();
+			try {
+				while (durableOffset < target) {
+					if (closed)
+						throw new IOException("log closed");
+					syncLock.wait();
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting for the sync");
+			}
+		}
+	}
+
+	/**
+	 * Syncs the log and stops its sync thread. Records can still be read, but
+	 * no longer appended.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+		synchronized (syncLock) {
+			syncLock.notifyAll();
+		}
+		try {
+			syncer.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	/**
+	 * @return the offset of the oldest record.
+	 */
+	public long getStartOffset() {
+		return segments[0].baseOffset;
+	}
+
+	/**
+	 * @return the offset the next record will have.
+	 */
+	public long getEndOffset() {
+		return endOffset;
+	}
+
+	/**
+	 * @return the offset up to which records are known to be on disk.
+	 */
+	public long getDurableOffset() {
+		synchronized (syncLock) {
+			return durableOffset;
+		}
+	}
+
+	/**
+	 * @return the number of segments of the log.
+	 */
+	public int getSegmentCount() {
+		return segments.length;
+	}
+
+	/**
+	 * @return the directory of the log.
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return the codec of the records.
+	 */
+	public MessageCodec getCodec() {
+		return codec;
+	}
+
+	// PRIVATE METHODS --------------------------------------------------
+
+	/**
+	 * Opens a segment with the configured sizes.
+	 */
+	private Segment newSegment(long baseOffset) throws IOException {
+		return new Segment(directory, baseOffset, segmentSize, segmentSize / MIN_AVERAGE_RECORD);
+	}
+
+	/**
+	 * Starts a new segment. Called while holding the lock of the log.
+	 *
+	 * @return the new segment.
+	 */
+	private Segment roll() throws IOException {
+		Segment added = newSegment(endOffset);
+		Segment[] current = segments;
+		Segment[] updated = Arrays.copyOf(current, current.length + 1);
+		updated[current.length] = added;
+		segments = updated;
+		return added;
+	}
+
+	/**
+	 * The loop of the sync thread: syncs every sync interval, or sooner when
+	 * a caller is waiting, until the log is closed.
+	 */
+	private void syncLoop() {
+		int first = 0; // the oldest segment that may hold records not synced
+		long synced = endOffset;
+		while (true) {
+			boolean last;
+			synchronized (syncLock) {
+				try {
+					if (!syncRequested && !closed)
+						syncLock.wait(syncInterval);
+				} catch (InterruptedException ex) {
+				}
+				syncRequested = false;
+				last = closed;
+			}
+
+			long target = endOffset;
+			if (target > synced) {
+				Segment[] current = segments;
+				for (int i = first; i < current.length; i++)
+					current[i].force();
+				first = current.length - 1;
+				synced = target;
+			}
+
+			synchronized (syncLock) {
+				durableOffset = synced;
+				syncLock.notifyAll();
+			}
+			if (last)
+				return;
+		}
+	}
+
+	/**
+	 * @return the name of a file of the segment starting at an offset.
+	 */
+	private static String fileName(long baseOffset, String suffix) {
+		String digits = Long.toString(baseOffset);
+		StringBuilder name = new StringBuilder(20 + suffix.length());
+		for (int i = digits.length(); i < 20; i++)
+			name.append('0');
+		return name.append(digits).append(suffix).toString();
+	}
+}
+// End of MessageLog class
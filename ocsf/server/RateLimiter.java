@@ -0,0 +1,111 @@
+package ocsf.server;
+
+/**
+ * The token buckets limiting how fast one client may send: one counting
+ * messages, one counting bytes. Each bucket fills at its rate up to its burst
+ * size, and every message received takes a token from the first and one per
+ * byte from the second.
+ * <p>
+ * An instance belongs to a single connection and is only used by the thread
+ * reading from it, its own thread or its reactor, so it needs neither locks
+ * nor atomic operations.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setRateLimit(double, int, double, int, int)
+ */
+final class RateLimiter {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * Messages added to the bucket per nanosecond, or 0 if messages are not
+	 * limited.
+	 */
+	private final double	messageRate;
+
+	/**
+	 * The most messages the bucket holds.
+	 */
+	private final double	messageBurst;
+
+	/**
+	 * Bytes added to the bucket per nanosecond, or 0 if bytes are not limited.
+	 */
+	private final double	byteRate;
+
+	/**
+	 * The most bytes the bucket holds.
+	 */
+	private final double	byteBurst;
+
+	/**
+	 * The tokens in each bucket.
+	 */
+	private double			messages, bytes;
+
+	/**
+	 * When the buckets were last filled, from <code>System.nanoTime()</code>.
+	 */
+	private long			filled;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs full buckets.
+	 *
+	 * @param messagesPerSecond
+	 *            the sustained message rate, or 0 for no limit.
+	 * @param messageBurst
+	 *            the number of messages that may be sent at once.
+	 * @param bytesPerSecond
+	 *            the sustained byte rate, or 0 for no limit.
+	 * @param byteBurst
+	 *            the number of bytes that may be sent at once.
+	 */
+	RateLimiter(double messagesPerSecond, int messageBurst, double bytesPerSecond, int byteBurst) {
+		this.messageRate = messagesPerSecond / 1e9;
+		this.messageBurst = Math.max(1, messageBurst);
+		this.byteRate = bytesPerSecond / 1e9;
+		this.byteBurst = Math.max(1, byteBurst);
+		this.messages = this.messageBurst;
+		this.bytes = this.byteBurst;
+		this.filled = System.nanoTime();
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Takes the tokens for a message if both buckets have enough of them.
+	 * A message bigger than the byte burst only needs a full bucket.
+	 *
+	 * @param size
+	 *            the size of the message in bytes, or 0 if unknown.
+	 * @return 0 if the message may be handled now, otherwise the time in
+	 *         nanoseconds before there are enough tokens; nothing is taken
+	 *         then.
+	 */
+	long acquire(int size) {
+		long now = System.nanoTime();
+		long elapsed = now - filled;
+		filled = now;
+		messages = Math.min(messageBurst, messages + elapsed * messageRate);
+		bytes = Math.min(byteBurst, bytes + elapsed * byteRate);
+
+		double neededBytes = Math.min(size, byteBurst);
+		double wait = 0;
+		if (messageRate > 0 && messages < 1)
+			wait = (1 - messages) / messageRate;
+		if (byteRate > 0 && bytes < neededBytes)
+			wait = Math.max(wait, (neededBytes - bytes) / byteRate);
+		if (wait > 0)
+			return Math.max(1, (long) Math.ceil(wait));
+
+		if (messageRate > 0)
+			messages -= 1;
+		if (byteRate > 0)
+			bytes -= neededBytes;
+		return 0;
+	}
+}
+// End of RateLimiter class
@@ -0,0 +1,178 @@
+package ocsf.server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the members of the rooms of an <code>AbstractServer</code>.
+ * A room is a named group of connections that messages can be sent to, so
+ * that a message reaches the members of one room instead of every client of
+ * the server. Rooms are created when their first member joins and forgotten
+ * when their last member leaves.
+ * <p>
+ * The members of a room are kept as a copy-on-write
+ * {@link ConnectionRegistry.Snapshot}, like the connections of the server,
+ * so sending to a room neither locks nor allocates. Joining and leaving lock
+ * the room concerned only.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#sendToRoom(String, Object)
+ */
+public final class RoomIndex {
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * The members of a room.
+	 */
+	private static final class Room {
+		/**
+		 * The current members. Replaced, never modified, while holding the
+		 * lock of the room.
+		 */
+		volatile ConnectionRegistry.Snapshot	members	= ConnectionRegistry.EMPTY;
+
+		/**
+		 * Set, while holding the lock of the room, when the last member left
+		 * and the room was removed from the index. A closed room must not be
+		 * joined.
+		 */
+		boolean									closed;
+	}
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The rooms by name.
+	 */
+	private final ConcurrentHashMap<String, Room>			rooms	= new ConcurrentHashMap<String, Room>();
+
+	/**
+	 * The names of the rooms joined by each connection, by connection id.
+	 */
+	private final ConcurrentHashMap<Long, Set<String>>		joined	= new ConcurrentHashMap<Long, Set<String>>();
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Returns the members of a room.
+	 *
+	 * @param room
+	 *            the name of the room.
+	 * @return the members, empty if the room does not exist.
+	 */
+	public ConnectionRegistry.Snapshot members(String room) {
+		Room existing = rooms.get(room);
+		return existing == null ? ConnectionRegistry.EMPTY : existing.members;
+	}
+
+	/**
+	 * @return the names of the rooms that currently have members.
+	 */
+	public String[] names() {
+		return rooms.keySet().toArray(new String[0]);
+	}
+
+	/**
+	 * Returns the rooms a connection is a member of.
+	 *
+	 * @param client
+	 *            the connection.
+	 * @return the names of its rooms.
+	 */
+	public String[] roomsOf(ConnectionToClient client) {
+		Set<String> names = joined.get(client.getConnectionId());
+		return names == null ? new String[0] : names.toArray(new String[0]);
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	/**
+	 * Adds a connection to a room, creating the room if needed.
+	 *
+	 * @param room
+	 *            the name of the room.
+	 * @param client
+	 *            the connection.
+	 * @return false if the connection already was a member.
+	 */
+	boolean join(String room, ConnectionToClient client) {
+		while (true) {
+			Room existing = rooms.get(room);
+			if (existing == null) {
+				Room created = new Room();
+				existing = rooms.putIfAbsent(room, created);
+				if (existing == null)
+					existing = created;
+			}
+
+			synchronized (existing) {
+				if (existing.closed)
+					continue; // removed meanwhile, try again with a new room
+
+				ConnectionRegistry.Snapshot current = existing.members;
+				existing.members = current.with(client);
+				if (existing.members == current)
+					return false;
+			}
+
+			Set<String> names = joined.get(client.getConnectionId());
+			if (names == null) {
+				Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+				names = joined.putIfAbsent(client.getConnectionId(), created);
+				if (names == null)
+					names = created;
+			}
+			names.add(room);
+			return true;
+		}
+	}
+
+	/**
+	 * Removes a connection from a room, forgetting the room if it has no
+	 * members left.
+	 *
+	 * @param room
+	 *            the name of the room.
+	 * @param client
+	 *            the connection.
+	 * @return false if the connection was not a member.
+	 */
+	boolean leave(String room, ConnectionToClient client) {
+		Set<String> names = joined.get(client.getConnectionId());
+		if (names != null)
+			names.remove(room);
+
+		Room existing = rooms.get(room);
+		if (existing == null)
+			return false;
+
+		synchronized (existing) {
+			ConnectionRegistry.Snapshot current = existing.members;
+			existing.members = current.without(client);
+			if (existing.members.size() == 0 && !existing.closed) {
+				existing.closed = true;
+				rooms.remove(room, existing);
+			}
+			return existing.members != current;
+		}
+	}
+
+	/**
+	 * Removes a connection from all its rooms. Called when the connection is
+	 * closed.
+	 *
+	 * @param client
+	 *            the connection.
+	 */
+	void leaveAll(ConnectionToClient client) {
+		Set<String> names = joined.remove(client.getConnectionId());
+		if (names == null)
+			return;
+
+		for (String room : names)
+			leave(room, client);
+	}
+}
+// End of RoomIndex class
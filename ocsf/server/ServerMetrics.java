@@ -0,0 +1,505 @@
+package ocsf.server;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms describing the activity of an
+ * <code>AbstractServer</code>. They are updated by every connection and
+ * every sender at once, so counters are striped <code>LongAdder</code>
+ * instances, which do not make concurrent updates contend on a single
+ * memory location.
+ * <p>
+ * The values are read as a {@link Snapshot}. Rates per second are obtained
+ * by comparing a snapshot with an earlier one.
+ * <p>
+ * Byte counts only include framed connections: legacy object streams do not
+ * tell how many bytes a message takes.
+ * <p>
+ * The send queue histograms are kept for the server as a whole here, and for
+ * each client by its connection, as {@link SendStats}.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#getMetrics()
+ */
+public final class ServerMetrics {
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A histogram of positive values, such as durations in nanoseconds or
+	 * queue depths. Values are counted in buckets: one per power of two,
+	 * split in 8 buckets of equal width, so values are kept within 12.5%.
+	 * Recording never locks.
+	 */
+	public static final class Histogram {
+		/**
+		 * Number of buckets per power of two.
+		 */
+		private static final int	SUB_BUCKETS	= 8;
+
+		/**
+		 * The count of values in each bucket.
+		 */
+		private final LongAdder[]	counts		= new LongAdder[64 * SUB_BUCKETS];
+
+		Histogram() {
+			for (int i = 0; i < counts.length; i++)
+				counts[i] = new LongAdder();
+		}
+
+		/**
+		 * Records a value. Negative values are recorded as 0.
+		 *
+		 * @param value
+		 *            the value.
+		 */
+		public void record(long value) {
+			counts[bucketOf(Math.max(0, value))].increment();
+		}
+
+		/**
+		 * @return the counts of the buckets, for a snapshot.
+		 */
+		long[] copy() {
+			long[] copy = new long[counts.length];
+			for (int i = 0; i < counts.length; i++)
+				copy[i] = counts[i].sum();
+			return copy;
+		}
+
+		/**
+		 * @return the bucket of a value.
+		 */
+		private static int bucketOf(long value) {
+			if (value < SUB_BUCKETS)
+				return (int) value;
+			int shift = 63 - Long.numberOfLeadingZeros(value) - 3;
+			return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+		}
+
+		/**
+		 * @return the highest value counted in a bucket.
+		 */
+		static long highestValueOf(int bucket) {
+			if (bucket < SUB_BUCKETS)
+				return bucket;
+			int shift = bucket / SUB_BUCKETS - 1;
+			long top = bucket % SUB_BUCKETS + SUB_BUCKETS;
+			return ((top + 1) << shift) - 1;
+		}
+	}
+
+	/**
+	 * The send queue histograms of a single client: the depth of its queue
+	 * when a message is added, and the time messages wait in it. Values are
+	 * counted with one bucket per power of two, coarser than the histograms
+	 * of the server, so that every connection can afford its own.
+	 *
+	 * @see ocsf.server.ConnectionToClient#getSendStats()
+	 */
+	public static final class SendStats {
+		/**
+		 * Number of buckets.
+		 */
+		static final int		BUCKETS	= 64;
+
+		/**
+		 * Bucket counts of the depths and of the times, in nanoseconds.
+		 */
+		private final long[]	depth, latency;
+
+		SendStats(long[] depth, long[] latency) {
+			this.depth = depth;
+			this.latency = latency;
+		}
+
+		/**
+		 * @return the number of messages queued.
+		 */
+		public long getCount() {
+			long total = 0;
+			for (int i = 0; i < depth.length; i++)
+				total += depth[i];
+			return total;
+		}
+
+		/**
+		 * Returns a percentile of the depths of the queue.
+		 *
+		 * @param percentile
+		 *            the percentile, 100 for the maximum.
+		 * @return the depth, within a factor of two.
+		 */
+		public long getDepth(double percentile) {
+			return percentile(depth, percentile);
+		}
+
+		/**
+		 * Returns a percentile of the times messages waited in the queue.
+		 *
+		 * @param percentile
+		 *            the percentile, 100 for the maximum.
+		 * @return the time in nanoseconds, within a factor of two.
+		 */
+		public long getLatency(double percentile) {
+			return percentile(latency, percentile);
+		}
+
+		/**
+		 * Formats the histograms as <code>name=value</code> lines, like
+		 * <code>Snapshot.report</code>.
+		 *
+		 * @param prefix
+		 *            put before every name, e.g. to tell the client.
+		 * @return the report.
+		 */
+		public String report(String prefix) {
+			StringBuilder out = new StringBuilder(256);
+			Snapshot.line(out, prefix + "sendQueue.depth.count", getCount());
+			Snapshot.line(out, prefix + "sendQueue.depth.p50", getDepth(50));
+			Snapshot.line(out, prefix + "sendQueue.depth.p99", getDepth(99));
+			Snapshot.line(out, prefix + "sendQueue.depth.max", getDepth(100));
+			Snapshot.line(out, prefix + "sendLatency.micros.p50", getLatency(50) / 1000);
+			Snapshot.line(out, prefix + "sendLatency.micros.p99", getLatency(99) / 1000);
+			Snapshot.line(out, prefix + "sendLatency.micros.max", getLatency(100) / 1000);
+			return out.toString();
+		}
+
+		/**
+		 * @return the bucket of a value.
+		 */
+		static int bucketOf(long value) {
+			return value <= 0 ? 0 : BUCKETS - Long.numberOfLeadingZeros(value);
+		}
+
+		private static long percentile(long[] counts, double percentile) {
+			long total = 0;
+			for (int i = 0; i < counts.length; i++)
+				total += counts[i];
+			if (total == 0)
+				return 0;
+
+			long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+			long seen = 0;
+			int bucket = 0;
+			while (bucket < counts.length - 1 && (seen += counts[bucket]) < rank)
+				bucket++;
+			return bucket == 0 ? 0 : (1L << bucket) - 1; // highest value of the bucket
+		}
+	}
+
+	/**
+	 * The values of the metrics at some point in time.
+	 */
+	public static final class Snapshot {
+		/**
+		 * When the snapshot was taken, from <code>System.nanoTime()</code>.
+		 */
+		public final long	time;
+
+		/**
+		 * The number of open connections.
+		 */
+		public final int	connections;
+
+		/**
+		 * Totals since the server was created.
+		 */
+		public final long	accepted, closed, refused, handshakeTimeouts, reaped, messagesIn, messagesOut, bytesIn,
+				bytesOut, broadcasts, broadcastRecipients, dropped, throttled, rateLimitDropped,
+				rateLimitDisconnects;
+
+		/**
+		 * Bucket counts of the histograms.
+		 */
+		private final long[]	broadcastTime, sendQueueDepth, sendLatency;
+
+		private Snapshot(ServerMetrics metrics) {
+			time = System.nanoTime();
+			connections = metrics.registry.size();
+			accepted = metrics.accepted.sum();
+			closed = metrics.closed.sum();
+			refused = metrics.refused.sum();
+			handshakeTimeouts = metrics.handshakeTimeouts.sum();
+			reaped = metrics.reaped.sum();
+			messagesIn = metrics.messagesIn.sum();
+			messagesOut = metrics.messagesOut.sum();
+			bytesIn = metrics.bytesIn.sum();
+			bytesOut = metrics.bytesOut.sum();
+			broadcasts = metrics.broadcasts.sum();
+			broadcastRecipients = metrics.broadcastRecipients.sum();
+			dropped = metrics.dropped.sum();
+			throttled = metrics.throttled.sum();
+			rateLimitDropped = metrics.rateLimitDropped.sum();
+			rateLimitDisconnects = metrics.rateLimitDisconnects.sum();
+			broadcastTime = metrics.broadcastTime.copy();
+			sendQueueDepth = metrics.sendQueueDepth.copy();
+			sendLatency = metrics.sendLatency.copy();
+		}
+
+		/**
+		 * Formats the snapshot as <code>name=value</code> lines, the format
+		 * of a properties file. Rates are computed over the time elapsed
+		 * since an earlier snapshot, and histograms over the values recorded
+		 * since then.
+		 *
+		 * @param earlier
+		 *            the earlier snapshot, or null to compute rates and
+		 *            histograms since the server was created.
+		 * @return the report.
+		 */
+		public String report(Snapshot earlier) {
+			double seconds = earlier == null ? 0 : (time - earlier.time) / 1e9;
+			StringBuilder out = new StringBuilder(1024);
+			line(out, "connections", connections);
+			line(out, "accepted", accepted);
+			line(out, "closed", closed);
+			line(out, "refused", refused);
+			line(out, "handshakeTimeouts", handshakeTimeouts);
+			line(out, "reaped", reaped);
+			line(out, "messagesIn", messagesIn);
+			line(out, "messagesOut", messagesOut);
+			line(out, "bytesIn", bytesIn);
+			line(out, "bytesOut", bytesOut);
+			line(out, "broadcasts", broadcasts);
+			line(out, "droppedMessages", dropped);
+			line(out, "rateLimit.throttled", throttled);
+			line(out, "rateLimit.dropped", rateLimitDropped);
+			line(out, "rateLimit.disconnects", rateLimitDisconnects);
+			if (seconds > 0) {
+				line(out, "interval.seconds", Math.round(seconds));
+				line(out, "accepted.perSecond", Math.round((accepted - earlier.accepted) / seconds));
+				line(out, "messagesIn.perSecond", Math.round((messagesIn - earlier.messagesIn) / seconds));
+				line(out, "messagesOut.perSecond", Math.round((messagesOut - earlier.messagesOut) / seconds));
+				line(out, "bytesIn.perSecond", Math.round((bytesIn - earlier.bytesIn) / seconds));
+				line(out, "bytesOut.perSecond", Math.round((bytesOut - earlier.bytesOut) / seconds));
+			}
+			long fanOut = broadcasts - (earlier == null ? 0 : earlier.broadcasts);
+			long recipients = broadcastRecipients - (earlier == null ? 0 : earlier.broadcastRecipients);
+			line(out, "broadcast.recipients.mean", fanOut == 0 ? 0 : recipients / fanOut);
+			histogram(out, "broadcast.micros", broadcastTime, earlier == null ? null : earlier.broadcastTime, 1000);
+			histogram(out, "sendQueue.depth", sendQueueDepth, earlier == null ? null : earlier.sendQueueDepth, 1);
+			histogram(out, "sendLatency.micros", sendLatency, earlier == null ? null : earlier.sendLatency, 1000);
+			return out.toString();
+		}
+
+		private static void line(StringBuilder out, String name, long value) {
+			out.append(name).append('=').append(value).append('\n');
+		}
+
+		/**
+		 * Appends the count, median, 99th percentile and maximum of the
+		 * values recorded between two snapshots.
+		 */
+		private static void histogram(StringBuilder out, String name, long[] counts, long[] earlier, long scale) {
+			long[] delta = new long[counts.length];
+			long total = 0;
+			for (int i = 0; i < counts.length; i++) {
+				delta[i] = counts[i] - (earlier == null ? 0 : earlier[i]);
+				total += delta[i];
+			}
+			line(out, name + ".count", total);
+			line(out, name + ".p50", percentile(delta, total, 50) / scale);
+			line(out, name + ".p99", percentile(delta, total, 99) / scale);
+			line(out, name + ".max", percentile(delta, total, 100) / scale);
+		}
+
+		private static long percentile(long[] counts, long total, double percentile) {
+			if (total == 0)
+				return 0;
+			long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank)
+					return Histogram.highestValueOf(i);
+			}
+			return Histogram.highestValueOf(counts.length - 1);
+		}
+	}
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The connections of the server.
+	 */
+	private final ConnectionRegistry	registry;
+
+	/**
+	 * Connections accepted.
+	 */
+	final LongAdder						accepted			= new LongAdder();
+
+	/**
+	 * Connections closed.
+	 */
+	final LongAdder						closed				= new LongAdder();
+
+	/**
+	 * Connections closed as soon as accepted because too many others had
+	 * not completed their handshake.
+	 */
+	final LongAdder						refused				= new LongAdder();
+
+	/**
+	 * Connections closed because their handshake took too long.
+	 */
+	final LongAdder						handshakeTimeouts	= new LongAdder();
+
+	/**
+	 * Connections closed because the client stopped sending heartbeats.
+	 */
+	final LongAdder						reaped				= new LongAdder();
+
+	/**
+	 * Messages received from clients.
+	 */
+	final LongAdder						messagesIn			= new LongAdder();
+
+	/**
+	 * Messages written to clients.
+	 */
+	final LongAdder						messagesOut			= new LongAdder();
+
+	/**
+	 * Bytes of the frames received.
+	 */
+	final LongAdder						bytesIn				= new LongAdder();
+
+	/**
+	 * Bytes of the frames written.
+	 */
+	final LongAdder						bytesOut			= new LongAdder();
+
+	/**
+	 * Messages sent to all clients or to a room.
+	 */
+	final LongAdder						broadcasts			= new LongAdder();
+
+	/**
+	 * Connections the broadcasts were sent to.
+	 */
+	final LongAdder						broadcastRecipients	= new LongAdder();
+
+	/**
+	 * Messages dropped by send queue overflows.
+	 */
+	final LongAdder						dropped				= new LongAdder();
+
+	/**
+	 * Times reading from a client was held back because it exceeded its rate
+	 * limit.
+	 */
+	final LongAdder						throttled			= new LongAdder();
+
+	/**
+	 * Messages discarded because their sender exceeded its rate limit.
+	 */
+	final LongAdder						rateLimitDropped	= new LongAdder();
+
+	/**
+	 * Connections closed because the client exceeded its rate limit.
+	 */
+	final LongAdder						rateLimitDisconnects	= new LongAdder();
+
+	/**
+	 * Time taken by a broadcast to hand the message to every recipient, in
+	 * nanoseconds.
+	 */
+	final Histogram						broadcastTime		= new Histogram();
+
+	/**
+	 * Depth of a send queue when a message is added to it.
+	 */
+	final Histogram						sendQueueDepth		= new Histogram();
+
+	/**
+	 * Time a message spends in a send queue before being written, in
+	 * nanoseconds.
+	 */
+	final Histogram						sendLatency			= new Histogram();
+
+	/**
+	 * Writes the snapshot file, or null.
+	 */
+	private ScheduledExecutorService	reporter;
+
+	// CONSTRUCTORS *****************************************************
+
+	ServerMetrics(ConnectionRegistry registry) {
+		this.registry = registry;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return the current values of the metrics.
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * Writes a report of the metrics to a file periodically, replacing the
+	 * previous one, with rates computed over the period. The file is written
+	 * under another name first and then renamed, so readers never see a
+	 * partial report. Calling this method again replaces the previous
+	 * schedule.
+	 *
+	 * @param file
+	 *            the file to write, or null to stop writing.
+	 * @param interval
+	 *            the period, in milliseconds.
+	 */
+	public synchronized void writePeriodically(final File file, long interval) {
+		if (reporter != null) {
+			reporter.shutdownNow();
+			reporter = null;
+		}
+		if (file == null)
+			return;
+
+		reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "OCSF metrics " + file.getName());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		reporter.scheduleAtFixedRate(new Runnable() {
+			private Snapshot	previous	= snapshot();
+
+			public void run() {
+				Snapshot current = snapshot();
+				try {
+					writeReport(file, current.report(previous));
+				} catch (IOException ex) {
+					// Try again next time
+				}
+				previous = current;
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Replaces the content of a file.
+	 */
+	private static void writeReport(File file, String report) throws IOException {
+		File temporary = new File(file.getPath() + ".tmp");
+		Writer out = new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8");
+		try {
+			out.write(report);
+		} finally {
+			out.close();
+		}
+		if (!temporary.renameTo(file)) {
+			file.delete();
+			if (!temporary.renameTo(file))
+				throw new IOException("cannot write " + file);
+		}
+	}
+}
+// End of ServerMetrics class